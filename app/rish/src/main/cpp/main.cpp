@@ -1,6 +1,7 @@
 #include <jni.h>
 #include "rikka_rish_RishTerminal.h"
 #include "rikka_rish_RishHost.h"
+#include "rikka_rish_ProcessReaper.h"
 
 JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
     JNIEnv *env = nullptr;
@@ -9,7 +10,8 @@ JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
         return -1;
 
     if (rikka_rish_RishHost_registerNatives(env) != JNI_OK
-        || rikka_rish_RishTerminal_registerNatives(env) != JNI_OK) {
+        || rikka_rish_RishTerminal_registerNatives(env) != JNI_OK
+        || rikka_rish_ProcessReaper_registerNatives(env) != JNI_OK) {
         return JNI_ERR;
     }
 
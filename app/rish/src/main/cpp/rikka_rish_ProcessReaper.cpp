@@ -0,0 +1,87 @@
+#include <jni.h>
+#include <cstdint>
+#include <unistd.h>
+#include <fcntl.h>
+#include <wait.h>
+#include <sys/syscall.h>
+#include <android/log.h>
+#include "logging.h"
+
+#ifndef __NR_pidfd_open
+#define __NR_pidfd_open 434
+#endif
+
+// Keep in sync with ProcessReaper.RUNNING
+#define RUNNING INT32_MIN
+
+static int exit_code(int status) {
+    if (WIFEXITED(status)) {
+        LOGD("exited with %d", WEXITSTATUS(status));
+        return WEXITSTATUS(status);
+    } else if (WIFSIGNALED(status)) {
+        LOGD("killed by signal %d", WTERMSIG(status));
+        return 0;
+    }
+    return -1;
+}
+
+/*
+ * Becomes readable once the process has exited, whoever reaps it.
+ *
+ * @return the pidfd, or -errno (-ENOSYS before Linux 5.3)
+ */
+static jint ProcessReaper_pidfdOpen(JNIEnv *env, jclass clazz, jint pid) {
+    int fd = (int) syscall(__NR_pidfd_open, pid, 0);
+    if (fd == -1) {
+        return -errno;
+    }
+    // pidfd_open sets close-on-exec itself, this is for kernels that may not
+    fcntl(fd, F_SETFD, FD_CLOEXEC);
+    return fd;
+}
+
+static jint ProcessReaper_reap(JNIEnv *env, jclass clazz, jint pid) {
+    int status;
+    int w = TEMP_FAILURE_RETRY(waitpid(pid, &status, WNOHANG));
+    if (w == 0) {
+        return RUNNING;
+    }
+    if (w == -1) {
+        if (errno == ECHILD) {
+            return 0;
+        }
+        PLOGE("waitpid");
+        return -1;
+    }
+    return exit_code(status);
+}
+
+static jint ProcessReaper_waitFor(JNIEnv *env, jclass clazz, jint pid) {
+    if (pid < 0)
+        return -1;
+
+    int status;
+    int w;
+    do {
+        w = TEMP_FAILURE_RETRY(waitpid(pid, &status, 0));
+        if (w == -1) {
+            if (errno == ECHILD) {
+                return 0;
+            }
+            PLOGE("waitpid");
+            return -1;
+        }
+    } while (!WIFEXITED(status) && !WIFSIGNALED(status));
+
+    return exit_code(status);
+}
+
+int rikka_rish_ProcessReaper_registerNatives(JNIEnv *env) {
+    auto clazz = env->FindClass("rikka/rish/ProcessReaper");
+    JNINativeMethod methods[] = {
+            {"pidfdOpen", "(I)I", (void *) ProcessReaper_pidfdOpen},
+            {"reap",      "(I)I", (void *) ProcessReaper_reap},
+            {"waitFor",   "(I)I", (void *) ProcessReaper_waitFor},
+    };
+    return env->RegisterNatives(clazz, methods, sizeof(methods) / sizeof(methods[0]));
+}
@@ -0,0 +1,8 @@
+#ifndef RIKKA_RISH_PROCESSREAPER_H
+#define RIKKA_RISH_PROCESSREAPER_H
+
+#include <jni.h>
+
+int rikka_rish_ProcessReaper_registerNatives(JNIEnv *env);
+
+#endif //RIKKA_RISH_PROCESSREAPER_H
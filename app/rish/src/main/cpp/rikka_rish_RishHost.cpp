@@ -8,6 +8,15 @@
 #include <pthread.h>
 #include "logging.h"
 #include "pts.h"
+#include "transfer.h"
+
+static void start_transfer(int32_t session, int stream, int in, int out, bool close_out,
+                           const std::function<void()> &function = nullptr) {
+    if (transfer_add(session, stream, in, out, true, close_out, function) == -1) {
+        PLOGE("transfer_add");
+        transfer_async(in, out, function, true, close_out);
+    }
+}
 
 static int setWindowSize(int ptmx, jlong size) {
     static_assert(sizeof(jlong) == sizeof(winsize));
@@ -139,28 +148,35 @@ static jintArray RishHost_startHost(
             kill(pid, SIGKILL);
         };
 
+        // ptmx is shared by both directions and setWindowSize, the session closes it at the end
+        int32_t session = transfer_session_create();
+        if (ptmx != -1) {
+            transfer_session_own(session, ptmx);
+        }
+
         if (in_tty) {
-            transfer_async(stdin_read, ptmx/*, func*/);
+            start_transfer(session, TRANSFER_STDIN, stdin_read, ptmx, false/*, func*/);
         } else {
-            transfer_async(stdin_read, stdin_pipe[1]/*, func*/);
+            start_transfer(session, TRANSFER_STDIN, stdin_read, stdin_pipe[1], true/*, func*/);
             close(stdin_pipe[0]);
         }
 
         if (out_tty) {
-            transfer_async(ptmx, stdout_write, func);
+            start_transfer(session, TRANSFER_STDOUT, ptmx, stdout_write, true, func);
         } else {
-            transfer_async(stdout_pipe[0], stdout_write, func);
+            start_transfer(session, TRANSFER_STDOUT, stdout_pipe[0], stdout_write, true, func);
             close(stdout_pipe[1]);
         }
 
         if (!err_tty) {
-            transfer_async(stderr_pipe[0], stderr_write/*, func*/);
+            start_transfer(session, TRANSFER_STDERR, stderr_pipe[0], stderr_write, true/*, func*/);
             close(stderr_pipe[1]);
         }
 
-        auto result = env->NewIntArray(2);
+        auto result = env->NewIntArray(3);
         env->SetIntArrayRegion(result, 0, 1, &pid);
         env->SetIntArrayRegion(result, 1, 1, &ptmx);
+        env->SetIntArrayRegion(result, 2, 1, &session);
         return result;
     } else {
         if (setsid() < 0) {
@@ -250,32 +266,23 @@ static void RishHost_setWindowSize(JNIEnv *env, jclass clazz, jint ptmx, jlong s
     setWindowSize(ptmx, size);
 }
 
-static jint RishHost_waitFor(JNIEnv *env, jclass clazz, jint pid) {
-    if (pid < 0)
-        return -1;
-
-    int status;
-    int w;
-    do {
-        w = TEMP_FAILURE_RETRY(waitpid(pid, &status, 0));
-        if (w == -1) {
-            if (errno == ECHILD) {
-                return 0;
-            }
-            PLOGE("waitpid");
-            return -1;
-        }
+static jlongArray RishHost_getTransferredBytes(JNIEnv *env, jclass clazz, jint session) {
+    uint64_t bytes[TRANSFER_STREAMS];
+    if (!transfer_session_get_bytes(session, bytes)) {
+        return nullptr;
+    }
 
-        if (WIFEXITED(status)) {
-            LOGD("exited with %d", WEXITSTATUS(status));
-            return WEXITSTATUS(status);
-        } else if (WIFSIGNALED(status)) {
-            LOGD("killed by signal %d", WTERMSIG(status));
-            return 0;
-        }
-    } while (!WIFEXITED(status) && !WIFSIGNALED(status));
+    jlong values[TRANSFER_STREAMS];
+    for (int i = 0; i < TRANSFER_STREAMS; ++i) {
+        values[i] = (jlong) bytes[i];
+    }
+    auto result = env->NewLongArray(TRANSFER_STREAMS);
+    env->SetLongArrayRegion(result, 0, TRANSFER_STREAMS, values);
+    return result;
+}
 
-    return -1;
+static void RishHost_releaseSession(JNIEnv *env, jclass clazz, jint session) {
+    transfer_session_release(session);
 }
 
 int rikka_rish_RishHost_registerNatives(JNIEnv *env) {
@@ -283,7 +290,8 @@ int rikka_rish_RishHost_registerNatives(JNIEnv *env) {
     JNINativeMethod methods[] = {
             {"start",         "([BI[BI[BBIII)[I", (void *) RishHost_startHost},
             {"setWindowSize", "(IJ)V",            (void *) RishHost_setWindowSize},
-            {"waitFor",       "(I)I",             (void *) RishHost_waitFor},
+            {"getTransferredBytes", "(I)[J",      (void *) RishHost_getTransferredBytes},
+            {"releaseSession", "(I)V",            (void *) RishHost_releaseSession},
     };
     return env->RegisterNatives(clazz, methods, sizeof(methods) / sizeof(methods[0]));
 }
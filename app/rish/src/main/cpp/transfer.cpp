@@ -0,0 +1,447 @@
+#include <unistd.h>
+#include <fcntl.h>
+#include <pthread.h>
+#include <sys/epoll.h>
+#include <atomic>
+#include <functional>
+#include <memory>
+#include <unordered_map>
+#include <vector>
+#include "logging.h"
+#include "transfer.h"
+
+// Moved per splice() call, also the size of the intermediate pipe
+#define CHUNK_SIZE (64 * 1024)
+
+// Buffer of the read()/write() fallback, allocated only when splice() is refused
+#define COPY_BUFFER_SIZE (64 * 1024)
+
+// Rounds of a single channel before other ready channels get their turn
+#define MAX_ROUNDS 16
+
+#define MAX_EVENTS 32
+
+struct session {
+    std::atomic<uint64_t> bytes[TRANSFER_STREAMS]{};
+    std::vector<int> owned_fds;
+    int channels = 0;
+    bool released = false;
+};
+
+struct channel;
+
+struct endpoint {
+    channel *owner;
+    bool is_out;
+};
+
+struct channel {
+    int32_t session_id;
+    session *s;
+    int stream;
+    int in;
+    int out;
+    // in -> mid[1], mid[0] -> out, so that either side may be anything splice() accepts
+    int mid[2]{-1, -1};
+    size_t mid_pending = 0;
+    bool splice_in = true;
+    bool splice_out = true;
+    std::unique_ptr<char[]> buf;
+    size_t buf_start = 0;
+    size_t buf_end = 0;
+    bool in_eof = false;
+    bool dead = false;
+    uint32_t in_events = 0;
+    uint32_t out_events = 0;
+    endpoint in_ep{};
+    endpoint out_ep{};
+    std::function<void()> on_done;
+};
+
+static pthread_once_t init_once = PTHREAD_ONCE_INIT;
+static int epfd = -1;
+
+// Held by the loop while it handles a batch of events, and by transfer_add() while it registers
+static pthread_mutex_t loop_mutex = PTHREAD_MUTEX_INITIALIZER;
+
+// Finished channels, freed by the loop at the end of a batch since its events may point to them
+static std::vector<channel *> *dead_channels;
+
+static pthread_mutex_t sessions_mutex = PTHREAD_MUTEX_INITIALIZER;
+static std::unordered_map<int32_t, session *> *sessions;
+static int32_t next_session_id = 1;
+
+static void *transfer_loop(void *);
+
+static void init() {
+    sessions = new std::unordered_map<int32_t, session *>();
+    dead_channels = new std::vector<channel *>();
+    epfd = epoll_create1(EPOLL_CLOEXEC);
+    if (epfd == -1) {
+        PLOGE("epoll_create1");
+        return;
+    }
+
+    pthread_t thread;
+    if (pthread_create(&thread, nullptr, transfer_loop, nullptr) != 0) {
+        PLOGE("pthread_create");
+        close(epfd);
+        epfd = -1;
+        return;
+    }
+    pthread_detach(thread);
+    pthread_setname_np(thread, "rish-transfer");
+}
+
+static bool ensure_init() {
+    pthread_once(&init_once, init);
+    return epfd != -1;
+}
+
+// Must be called with sessions_mutex held
+static void maybe_free_session_locked(int32_t id, session *s) {
+    if (!s->released || s->channels > 0) {
+        return;
+    }
+    for (int fd : s->owned_fds) {
+        close(fd);
+    }
+    sessions->erase(id);
+    delete s;
+}
+
+int32_t transfer_session_create() {
+    ensure_init();
+
+    pthread_mutex_lock(&sessions_mutex);
+    int32_t id = next_session_id++;
+    if (next_session_id <= 0) next_session_id = 1;
+    (*sessions)[id] = new session();
+    pthread_mutex_unlock(&sessions_mutex);
+    return id;
+}
+
+void transfer_session_own(int32_t id, int fd) {
+    pthread_mutex_lock(&sessions_mutex);
+    auto it = sessions->find(id);
+    if (it != sessions->end()) {
+        it->second->owned_fds.push_back(fd);
+    } else {
+        close(fd);
+    }
+    pthread_mutex_unlock(&sessions_mutex);
+}
+
+bool transfer_session_get_bytes(int32_t id, uint64_t bytes[TRANSFER_STREAMS]) {
+    bool found = false;
+    pthread_mutex_lock(&sessions_mutex);
+    auto it = sessions->find(id);
+    if (it != sessions->end()) {
+        for (int i = 0; i < TRANSFER_STREAMS; ++i) {
+            bytes[i] = it->second->bytes[i].load(std::memory_order_relaxed);
+        }
+        found = true;
+    }
+    pthread_mutex_unlock(&sessions_mutex);
+    return found;
+}
+
+void transfer_session_release(int32_t id) {
+    pthread_mutex_lock(&sessions_mutex);
+    auto it = sessions->find(id);
+    if (it != sessions->end()) {
+        it->second->released = true;
+        maybe_free_session_locked(id, it->second);
+    }
+    pthread_mutex_unlock(&sessions_mutex);
+}
+
+static int dup_nonblock(int fd) {
+    int res = fcntl(fd, F_DUPFD_CLOEXEC, 0);
+    if (res == -1) {
+        return -1;
+    }
+    int flags = fcntl(res, F_GETFL);
+    if (flags == -1 || fcntl(res, F_SETFL, flags | O_NONBLOCK) == -1) {
+        close(res);
+        return -1;
+    }
+    return res;
+}
+
+static int epoll_set(int op, int fd, uint32_t events, endpoint *ep) {
+    epoll_event ev{};
+    ev.events = events;
+    ev.data.ptr = ep;
+    return epoll_ctl(epfd, op, fd, &ev);
+}
+
+/**
+ * An in_events of 0 takes in out of epoll altogether: EPOLLHUP and EPOLLERR are reported even
+ * with an empty mask, so a writer that is gone would wake the loop on every epoll_wait() while
+ * the channel waits for out.
+ */
+static void update_events(channel *c, uint32_t in_events, uint32_t out_events) {
+    if (c->in_events != in_events) {
+        if (in_events == 0) {
+            epoll_ctl(epfd, EPOLL_CTL_DEL, c->in, nullptr);
+        } else {
+            epoll_set(c->in_events == 0 ? EPOLL_CTL_ADD : EPOLL_CTL_MOD, c->in, in_events, &c->in_ep);
+        }
+        c->in_events = in_events;
+    }
+    if (c->out_events != out_events) {
+        epoll_set(EPOLL_CTL_MOD, c->out, out_events, &c->out_ep);
+        c->out_events = out_events;
+    }
+}
+
+static void finish(channel *c) {
+    if (c->dead) {
+        return;
+    }
+    c->dead = true;
+    dead_channels->push_back(c);
+
+    epoll_ctl(epfd, EPOLL_CTL_DEL, c->in, nullptr);
+    epoll_ctl(epfd, EPOLL_CTL_DEL, c->out, nullptr);
+    close(c->in);
+    close(c->out);
+    close(c->mid[0]);
+    close(c->mid[1]);
+
+    if (c->on_done) c->on_done();
+
+    pthread_mutex_lock(&sessions_mutex);
+    c->s->channels--;
+    maybe_free_session_locked(c->session_id, c->s);
+    pthread_mutex_unlock(&sessions_mutex);
+}
+
+static void count(channel *c, ssize_t n) {
+    c->s->bytes[c->stream].fetch_add((uint64_t) n, std::memory_order_relaxed);
+}
+
+static char *copy_buffer(channel *c) {
+    if (!c->buf) {
+        c->buf.reset(new char[COPY_BUFFER_SIZE]);
+    }
+    return c->buf.get();
+}
+
+/**
+ * Writes out everything read so far.
+ *
+ * @return 1 if all written, 0 if out would block, -1 on error
+ */
+static int drain(channel *c) {
+    while (true) {
+        if (c->buf_start < c->buf_end) {
+            ssize_t n = TEMP_FAILURE_RETRY(write(c->out, c->buf.get() + c->buf_start, c->buf_end - c->buf_start));
+            if (n == -1) {
+                return errno == EAGAIN ? 0 : -1;
+            }
+            c->buf_start += n;
+            count(c, n);
+            continue;
+        }
+        c->buf_start = c->buf_end = 0;
+
+        if (c->mid_pending == 0) {
+            return 1;
+        }
+
+        if (c->splice_out) {
+            ssize_t n = TEMP_FAILURE_RETRY(splice(c->mid[0], nullptr, c->out, nullptr, c->mid_pending,
+                                                  SPLICE_F_NONBLOCK | SPLICE_F_MOVE));
+            if (n >= 0) {
+                c->mid_pending -= n;
+                count(c, n);
+                continue;
+            }
+            if (errno == EAGAIN) {
+                return 0;
+            }
+            if (errno != EINVAL) {
+                return -1;
+            }
+            LOGD("splice to fd %d is not supported, copying", c->out);
+            c->splice_out = false;
+        }
+
+        // Take the data back out of the pipe and write it ourselves
+        ssize_t n = TEMP_FAILURE_RETRY(read(c->mid[0], copy_buffer(c), COPY_BUFFER_SIZE));
+        if (n <= 0) {
+            return -1;
+        }
+        c->mid_pending -= n;
+        c->buf_end = n;
+    }
+}
+
+/**
+ * Reads the next chunk, drain() must have emptied everything before.
+ *
+ * @return bytes read, 0 at the end of in, -1 if in would block, -2 on error
+ */
+static ssize_t fill(channel *c) {
+    if (c->splice_in) {
+        ssize_t n = TEMP_FAILURE_RETRY(splice(c->in, nullptr, c->mid[1], nullptr, CHUNK_SIZE,
+                                              SPLICE_F_NONBLOCK | SPLICE_F_MOVE));
+        if (n >= 0) {
+            c->mid_pending += n;
+            return n;
+        }
+        if (errno == EAGAIN) {
+            return -1;
+        }
+        if (errno != EINVAL) {
+            return -2;
+        }
+        LOGD("splice from fd %d is not supported, copying", c->in);
+        c->splice_in = false;
+    }
+
+    ssize_t n = TEMP_FAILURE_RETRY(read(c->in, copy_buffer(c), COPY_BUFFER_SIZE));
+    if (n >= 0) {
+        c->buf_start = 0;
+        c->buf_end = n;
+        return n;
+    }
+    // A pty master reports EIO once the slave side is closed
+    if (errno == EIO) {
+        return 0;
+    }
+    return errno == EAGAIN ? -1 : -2;
+}
+
+static void pump(channel *c) {
+    for (int round = 0; round < MAX_ROUNDS; ++round) {
+        int drained = drain(c);
+        if (drained == -1) {
+            finish(c);
+            return;
+        }
+        if (drained == 0) {
+            // Stop reading until out has room again
+            update_events(c, 0, EPOLLOUT);
+            return;
+        }
+        if (c->in_eof) {
+            finish(c);
+            return;
+        }
+
+        ssize_t n = fill(c);
+        if (n == 0) {
+            c->in_eof = true;
+        } else if (n == -1) {
+            update_events(c, EPOLLIN, 0);
+            return;
+        } else if (n == -2) {
+            finish(c);
+            return;
+        }
+    }
+    // More is coming, leave the rest for the next epoll_wait()
+    update_events(c, EPOLLIN, 0);
+}
+
+static void *transfer_loop(void *) {
+    epoll_event events[MAX_EVENTS];
+
+    while (true) {
+        int ready = TEMP_FAILURE_RETRY(epoll_wait(epfd, events, MAX_EVENTS, -1));
+        if (ready == -1) {
+            PLOGE("epoll_wait");
+            continue;
+        }
+
+        pthread_mutex_lock(&loop_mutex);
+        for (int i = 0; i < ready; ++i) {
+            auto ep = (endpoint *) events[i].data.ptr;
+            channel *c = ep->owner;
+            if (c->dead) {
+                continue;
+            }
+
+            if (ep->is_out && (events[i].events & (EPOLLERR | EPOLLHUP))) {
+                // The reader is gone, nothing we read can be delivered anymore
+                finish(c);
+            } else {
+                pump(c);
+            }
+        }
+
+        for (channel *c : *dead_channels) {
+            delete c;
+        }
+        dead_channels->clear();
+        pthread_mutex_unlock(&loop_mutex);
+    }
+    return nullptr;
+}
+
+int transfer_add(int32_t session_id, int stream, int in, int out, bool close_in, bool close_out,
+                 const std::function<void()> &on_done) {
+    if (!ensure_init()) {
+        errno = ENOSYS;
+        return -1;
+    }
+
+    auto c = new channel();
+    c->session_id = session_id;
+    c->stream = stream;
+    c->on_done = on_done;
+    c->in = dup_nonblock(in);
+    c->out = dup_nonblock(out);
+    if (c->in == -1 || c->out == -1 || pipe2(c->mid, O_NONBLOCK | O_CLOEXEC) == -1) {
+        int saved_errno = errno;
+        PLOGE("transfer_add");
+        if (c->in != -1) close(c->in);
+        if (c->out != -1) close(c->out);
+        delete c;
+        errno = saved_errno;
+        return -1;
+    }
+    fcntl(c->mid[1], F_SETPIPE_SZ, CHUNK_SIZE);
+
+    pthread_mutex_lock(&sessions_mutex);
+    auto it = sessions->find(session_id);
+    if (it == sessions->end()) {
+        pthread_mutex_unlock(&sessions_mutex);
+        close(c->in);
+        close(c->out);
+        close(c->mid[0]);
+        close(c->mid[1]);
+        delete c;
+        errno = ENOENT;
+        return -1;
+    }
+    c->s = it->second;
+    c->s->channels++;
+    pthread_mutex_unlock(&sessions_mutex);
+
+    c->in_ep = {c, false};
+    c->out_ep = {c, true};
+    c->in_events = EPOLLIN;
+    c->out_events = 0;
+
+    // Only the loop thread touches the channel after this
+    pthread_mutex_lock(&loop_mutex);
+    if (epoll_set(EPOLL_CTL_ADD, c->out, 0, &c->out_ep) == -1
+        || epoll_set(EPOLL_CTL_ADD, c->in, EPOLLIN, &c->in_ep) == -1) {
+        // Not pollable, such as a regular file
+        int saved_errno = errno;
+        c->on_done = nullptr;
+        finish(c);
+        pthread_mutex_unlock(&loop_mutex);
+        errno = saved_errno;
+        return -1;
+    }
+    pthread_mutex_unlock(&loop_mutex);
+
+    if (close_in) close(in);
+    if (close_out) close(out);
+    return 0;
+}
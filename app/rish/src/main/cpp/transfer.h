@@ -0,0 +1,44 @@
+#ifndef TRANSFER_H
+#define TRANSFER_H
+
+#include <cstdint>
+#include <functional>
+
+#define TRANSFER_STDIN     0
+#define TRANSFER_STDOUT    1
+#define TRANSFER_STDERR    2
+#define TRANSFER_STREAMS   3
+
+/**
+ * Single epoll thread moving data for every rish session of the process.
+ *
+ * A session groups the channels of one host; its byte counters stay readable until it is
+ * released, and fds handed to session_own() are closed once it is released and all its
+ * channels have finished.
+ */
+
+int32_t transfer_session_create();
+
+/**
+ * Close fd when the session is gone.
+ */
+void transfer_session_own(int32_t session, int fd);
+
+/**
+ * @return false if the session does not exist
+ */
+bool transfer_session_get_bytes(int32_t session, uint64_t bytes[TRANSFER_STREAMS]);
+
+void transfer_session_release(int32_t session);
+
+/**
+ * Copy from in to out until in ends or out is closed, then call on_done on the transfer thread.
+ * in and out are duplicated, the originals are closed right away if close_in/close_out is set.
+ *
+ * @return 0, or -1 with errno set if the channel could not be added (for example an fd that
+ * epoll does not accept); in and out are left untouched then
+ */
+int transfer_add(int32_t session, int stream, int in, int out, bool close_in, bool close_out,
+                 const std::function<void()> &on_done = nullptr);
+
+#endif //TRANSFER_H
@@ -0,0 +1,189 @@
+package rikka.rish;
+
+import static android.os.MessageQueue.OnFileDescriptorEventListener.EVENT_ERROR;
+import static android.os.MessageQueue.OnFileDescriptorEventListener.EVENT_INPUT;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.MessageQueue;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+/**
+ * Reports the exit of processes from one thread.
+ * <p>
+ * Each process is watched through a pidfd, which becomes readable when the process exits, on the
+ * looper of a single thread. Kernels before 5.3 have no pidfd, there a thread blocks in waitpid for
+ * each child, or {@link #watchExit} returns {@code false}.
+ */
+public class ProcessReaper {
+
+    private static final String TAG = "ProcessReaper";
+
+    /**
+     * Returned by {@link #reap(int)} while the process is still running.
+     */
+    private static final int RUNNING = Integer.MIN_VALUE;
+
+    private static final int ENOSYS = 38;
+
+    public interface Callback {
+
+        void onExit(int exitCode);
+    }
+
+    private static HandlerThread thread;
+    private static Handler handler;
+    private static MessageQueue queue;
+    private static volatile boolean noPidfd;
+
+    private static synchronized void ensureThread() {
+        if (thread == null) {
+            thread = new HandlerThread("ProcessReaper");
+            thread.setDaemon(true);
+            thread.start();
+            handler = new Handler(thread.getLooper());
+            queue = thread.getLooper().getQueue();
+        }
+    }
+
+    /**
+     * @return the pidfd, or {@code null} if the kernel has none or the process is gone
+     */
+    private static ParcelFileDescriptor openPidfd(int pid) {
+        if (noPidfd) {
+            return null;
+        }
+        int fd = pidfdOpen(pid);
+        if (fd < 0) {
+            if (fd == -ENOSYS) {
+                Log.i(TAG, "pidfd_open is not supported");
+                noPidfd = true;
+            } else {
+                Log.w(TAG, "pidfd_open " + pid + " failed with " + -fd);
+            }
+            return null;
+        }
+        return ParcelFileDescriptor.adoptFd(fd);
+    }
+
+    /**
+     * A pidfd watched on the reaper thread. {@code onReadable} is called there when it becomes
+     * readable, which happens once and for good, and the pidfd is closed after that.
+     */
+    public static final class Watch implements Closeable {
+
+        private final ParcelFileDescriptor pidfd;
+        private final Runnable onReadable;
+
+        // Only used on the reaper thread
+        private boolean closed;
+
+        private Watch(ParcelFileDescriptor pidfd, Runnable onReadable) {
+            this.pidfd = pidfd;
+            this.onReadable = onReadable;
+        }
+
+        private void start() {
+            ensureThread();
+            handler.post(() -> {
+                if (!closed) {
+                    queue.addOnFileDescriptorEventListener(
+                            pidfd.getFileDescriptor(), EVENT_INPUT | EVENT_ERROR, this::onEvent);
+                }
+            });
+        }
+
+        private int onEvent(FileDescriptor fd, int events) {
+            // Removed by returning 0, closed after the looper is done with it
+            handler.post(this::closePidfd);
+            onReadable.run();
+            return 0;
+        }
+
+        /**
+         * Stops watching and closes the pidfd. {@code onReadable} is not called after this
+         * unless it is already running.
+         */
+        @Override
+        public void close() {
+            handler.post(() -> {
+                if (!closed) {
+                    queue.removeOnFileDescriptorEventListener(pidfd.getFileDescriptor());
+                    closePidfd();
+                }
+            });
+        }
+
+        private void closePidfd() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                pidfd.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static Watch watch(ParcelFileDescriptor pidfd, Runnable onReadable) {
+        Watch watch = new Watch(pidfd, onReadable);
+        watch.start();
+        return watch;
+    }
+
+    /**
+     * Reaps a child forked by this process and reports its exit code. Nothing else may wait for it.
+     * <p>
+     * {@code callback} is called on the reaper thread and should not block.
+     */
+    public static void watchChild(int pid, Callback callback) {
+        ParcelFileDescriptor pidfd = openPidfd(pid);
+        if (pidfd == null) {
+            new Thread(() -> callback.onExit(waitFor(pid)), "waitFor-" + pid).start();
+            return;
+        }
+        watch(pidfd, () -> {
+            int exitCode = reap(pid);
+            if (exitCode == RUNNING) {
+                // Should not happen, the pidfd only becomes readable after the exit
+                Log.w(TAG, pid + " is still running");
+                new Thread(() -> callback.onExit(waitFor(pid)), "waitFor-" + pid).start();
+                return;
+            }
+            callback.onExit(exitCode);
+        });
+    }
+
+    /**
+     * Reports the exit of a process that someone else reaps, such as a {@link Process}. The process
+     * may not have been reaped yet when {@code onExit} runs.
+     * <p>
+     * The caller has to check the process is still running after this returns, as it may have
+     * ended before it was watched, and close the watch if it has: the pidfd may then belong to
+     * another process that reused the pid.
+     *
+     * @return the watch, or {@code null} if the exit can't be watched
+     */
+    @Nullable
+    public static Watch watchExit(int pid, Runnable onExit) {
+        ParcelFileDescriptor pidfd = openPidfd(pid);
+        if (pidfd == null) {
+            return null;
+        }
+        return watch(pidfd, onExit);
+    }
+
+    private static native int pidfdOpen(int pid);
+
+    private static native int reap(int pid);
+
+    private static native int waitFor(int pid);
+}
@@ -12,6 +12,11 @@ public class RishConfig {
     static final int TRANSACTION_setWindowSize = 1;
     static final int TRANSACTION_getExitCode = 2;
 
+    /**
+     * One-way call from the server to the token of a terminal when its host has exited.
+     */
+    static final int CALLBACK_onExit = IBinder.FIRST_CALL_TRANSACTION;
+
     private static IBinder binder;
     private static String interfaceToken;
     private static int transactionCodeStart;
@@ -5,4 +5,9 @@ class RishConstants {
     public static final int ATTY_IN = (1);
     public static final int ATTY_OUT = (1 << 1);
     public static final int ATTY_ERR = (1 << 2);
+
+    /**
+     * Reply flag of createHost, the server calls {@link RishConfig#CALLBACK_onExit}.
+     */
+    public static final int HOST_EXIT_CALLBACK = (1);
 }
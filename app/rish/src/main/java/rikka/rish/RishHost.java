@@ -60,7 +60,11 @@ public class RishHost {
     private final int stderr;
     private int pid;
     private int ptmx;
-    private int exitCode = Integer.MAX_VALUE;
+    private int session;
+    private volatile long[] transferredBytes;
+    private volatile boolean exited;
+    private volatile int exitCode = Integer.MAX_VALUE;
+    private Runnable exitListener;
 
     public RishHost(
             String[] args, String[] env, String dir,
@@ -77,7 +81,7 @@ public class RishHost {
     }
 
     /**
-     * Fork and execute, start transfer threads.
+     * Fork and execute, hand the streams to the native transfer loop.
      */
     public void start() {
         Log.d(TAG, "start");
@@ -95,8 +99,35 @@ public class RishHost {
 
         pid = result[0];
         ptmx = result[1];
+        session = result[2];
 
-        new Thread(() -> exitCode = waitFor(pid)).start();
+        ProcessReaper.watchChild(pid, this::onExit);
+    }
+
+    private void onExit(int code) {
+        synchronized (this) {
+            exitCode = code;
+            exited = true;
+            // Counters stop here, the native side goes away once the streams are drained
+            transferredBytes = getTransferredBytes(session);
+            releaseSession(session);
+        }
+        Runnable listener = exitListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Called on the {@link ProcessReaper} thread once the process has exited. Must be set before
+     * {@link #start()}.
+     */
+    public void setOnExitListener(Runnable listener) {
+        this.exitListener = listener;
+    }
+
+    public boolean hasExited() {
+        return exited;
     }
 
     public int getPid() {
@@ -107,10 +138,26 @@ public class RishHost {
         return exitCode;
     }
 
+    /**
+     * @return bytes moved so far for stdin, stdout and stderr
+     */
+    public long[] getTransferredBytes() {
+        long[] bytes = transferredBytes;
+        if (bytes == null) {
+            bytes = getTransferredBytes(session);
+        }
+        return bytes != null ? bytes.clone() : new long[3];
+    }
+
     public void setWindowSize(long size) {
         Log.d(TAG, "setWindowSize");
 
-        setWindowSize(ptmx, size);
+        // ptmx belongs to the transfer session and is closed when it is released
+        synchronized (this) {
+            if (!exited) {
+                setWindowSize(ptmx, size);
+            }
+        }
     }
 
     private static native int[] start(
@@ -121,5 +168,7 @@ public class RishHost {
 
     private static native void setWindowSize(int ptmx, long size);
 
-    private static native int waitFor(int pid);
+    private static native long[] getTransferredBytes(int session);
+
+    private static native void releaseSession(int session);
 }
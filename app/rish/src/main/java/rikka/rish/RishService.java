@@ -10,22 +10,27 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
 
 public abstract class RishService {
 
     private static final String TAG = "RishService";
 
-    private static final Map<Integer, RishHost> HOSTS = new HashMap<>();
+    private static final RishSessions SESSIONS = new RishSessions();
 
     private static final boolean IS_ROOT = Os.getuid() == 0;
 
-    private void createHost(
+    /**
+     * @param token binder of the client, its death ends the session and it is told about the exit
+     * @return the session id, or 0 if the client is already gone
+     */
+    private int createHost(
             String[] args, String[] env, String dir,
             byte tty,
-            ParcelFileDescriptor stdin, ParcelFileDescriptor stdout, ParcelFileDescriptor stderr) {
+            ParcelFileDescriptor stdin, ParcelFileDescriptor stdout, ParcelFileDescriptor stderr,
+            @Nullable IBinder token) {
 
+        int callingUid = Binder.getCallingUid();
         int callingPid = Binder.getCallingPid();
 
         // Termux app set PATH and LD_PRELOAD to Termux's internal path.
@@ -49,34 +54,55 @@ public abstract class RishService {
         }
 
         RishHost host = new RishHost(args, env, dir, tty, stdin, stdout, stderr);
+        RishSessions.Session session = SESSIONS.add(callingUid, callingPid, host, token);
+        if (session == null) {
+            closeSilently(stdin);
+            closeSilently(stdout);
+            closeSilently(stderr);
+            return 0;
+        }
         host.start();
-        Log.d(TAG, "Forked " + host.getPid());
+        Log.d(TAG, "Forked " + host.getPid() + " for session " + session.id);
+        return session.id;
+    }
 
-        HOSTS.put(callingPid, host);
+    private static void closeSilently(@Nullable ParcelFileDescriptor pfd) {
+        if (pfd == null) {
+            return;
+        }
+        try {
+            pfd.close();
+        } catch (IOException ignored) {
+        }
     }
 
-    private void setWindowSize(long size) {
+    private void setWindowSize(int sessionId, long size) {
         int callingPid = Binder.getCallingPid();
 
-        RishHost host = HOSTS.get(callingPid);
-        if (host == null) {
-            Log.d(TAG, "Not existing host created by " + callingPid);
+        RishSessions.Session session = SESSIONS.get(sessionId, Binder.getCallingUid(), callingPid);
+        if (session == null) {
+            Log.d(TAG, "Not existing session " + sessionId + " of " + callingPid);
             return;
         }
 
-        host.setWindowSize(size);
+        session.host.setWindowSize(size);
     }
 
-    private int getExitCode() {
+    private int getExitCode(int sessionId) {
         int callingPid = Binder.getCallingPid();
 
-        RishHost host = HOSTS.get(callingPid);
-        if (host == null) {
-            Log.d(TAG, "Not existing host created by " + callingPid);
+        RishSessions.Session session = SESSIONS.get(sessionId, Binder.getCallingUid(), callingPid);
+        if (session == null) {
+            Log.d(TAG, "Not existing session " + sessionId + " of " + callingPid);
             return -1;
         }
 
-        return host.getExitCode();
+        if (!session.host.hasExited()) {
+            return session.host.getExitCode();
+        }
+        // The client is done with it
+        SESSIONS.remove(session);
+        return session.host.getExitCode();
     }
 
     public abstract void enforceCallingPermission(String func);
@@ -105,8 +131,12 @@ public abstract class RishService {
             String[] args = data.createStringArray();
             String[] env = data.createStringArray();
             String dir = data.readString();
-            createHost(args, env, dir, tty, stdin, stdout, stderr);
+            // Clients without session ids end here
+            IBinder token = data.dataAvail() > 0 ? data.readStrongBinder() : null;
+            int sessionId = createHost(args, env, dir, tty, stdin, stdout, stderr, token);
             reply.writeNoException();
+            reply.writeInt(sessionId);
+            reply.writeInt(RishConstants.HOST_EXIT_CALLBACK);
             return true;
         } else if (code == RishConfig.getTransactionCode(RishConfig.TRANSACTION_setWindowSize)) {
             Log.d(TAG, "TRANSACTION_setWindowSize");
@@ -115,7 +145,8 @@ public abstract class RishService {
 
             data.enforceInterface(RishConfig.getInterfaceToken());
             long size = data.readLong();
-            setWindowSize(size);
+            int sessionId = data.dataAvail() >= 4 ? data.readInt() : 0;
+            setWindowSize(sessionId, size);
             if (reply != null) {
                 reply.writeNoException();
             }
@@ -126,7 +157,8 @@ public abstract class RishService {
             enforceCallingPermission("getExitCode");
 
             data.enforceInterface(RishConfig.getInterfaceToken());
-            int exitCode = getExitCode();
+            int sessionId = data.dataAvail() >= 4 ? data.readInt() : 0;
+            int exitCode = getExitCode(sessionId);
             if (reply != null) {
                 reply.writeNoException();
                 reply.writeInt(exitCode);
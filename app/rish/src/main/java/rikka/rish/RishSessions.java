@@ -0,0 +1,164 @@
+package rikka.rish;
+
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hosts of all clients, keyed by a session id issued by the server.
+ * <p>
+ * Lookups only read a {@link ConcurrentHashMap}. Clients that sent a token are called back with
+ * the exit code when the host exits. A session is removed when its exit code has been read, when
+ * the client token dies, or {@link #RETENTION_MILLIS} after the process exited if nobody asked for
+ * the exit code; the last case is swept on every {@link #add}.
+ * <p>
+ * Clients that predate session ids only know their pid, so the newest session of every pid is
+ * also kept for them.
+ */
+class RishSessions {
+
+    private static final String TAG = "RishSessions";
+
+    private static final long RETENTION_MILLIS = 60 * 1000;
+
+    static final class Session {
+
+        final int id;
+        final int uid;
+        final int pid;
+        final RishHost host;
+
+        @Nullable
+        final IBinder token;
+
+        @Nullable
+        IBinder.DeathRecipient deathRecipient;
+
+        volatile long exitTime;
+
+        Session(int id, int uid, int pid, RishHost host, @Nullable IBinder token) {
+            this.id = id;
+            this.uid = uid;
+            this.pid = pid;
+            this.host = host;
+            this.token = token;
+        }
+    }
+
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final Map<Integer, Session> sessions = new ConcurrentHashMap<>();
+    private final Map<Integer, Session> latestByPid = new ConcurrentHashMap<>();
+
+    /**
+     * Registers a host that has not been started yet.
+     *
+     * @return the new session, or {@code null} if the client token is already dead
+     */
+    @Nullable
+    Session add(int uid, int pid, RishHost host, @Nullable IBinder token) {
+        sweep();
+
+        int id;
+        do {
+            // 0 means "no id" on the wire
+            id = nextId.getAndIncrement() & Integer.MAX_VALUE;
+        } while (id == 0 || sessions.containsKey(id));
+
+        Session session = new Session(id, uid, pid, host, token);
+        if (token != null) {
+            IBinder.DeathRecipient deathRecipient = () -> onClientDied(session);
+            try {
+                token.linkToDeath(deathRecipient, 0);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Client " + pid + " died before its host started");
+                return null;
+            }
+            session.deathRecipient = deathRecipient;
+        }
+        host.setOnExitListener(() -> {
+            session.exitTime = SystemClock.elapsedRealtime();
+            notifyExit(session);
+        });
+
+        sessions.put(id, session);
+        latestByPid.put(pid, session);
+        return session;
+    }
+
+    /**
+     * @param id session id from the client, or 0 for clients that do not send one
+     * @return the session if it belongs to the calling uid
+     */
+    @Nullable
+    Session get(int id, int callingUid, int callingPid) {
+        Session session = id != 0 ? sessions.get(id) : latestByPid.get(callingPid);
+        if (session == null || session.uid != callingUid) {
+            return null;
+        }
+        return session;
+    }
+
+    void remove(Session session) {
+        if (sessions.remove(session.id, session)) {
+            Log.d(TAG, "Removed session " + session.id + " of " + session.pid);
+        }
+        latestByPid.remove(session.pid, session);
+        if (session.token != null && session.deathRecipient != null) {
+            session.token.unlinkToDeath(session.deathRecipient, 0);
+        }
+    }
+
+    private static void notifyExit(Session session) {
+        if (session.token == null) {
+            return;
+        }
+
+        Parcel data = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(RishConfig.getInterfaceToken());
+            data.writeInt(session.id);
+            data.writeInt(session.host.getExitCode());
+            session.token.transact(RishConfig.CALLBACK_onExit, data, null, IBinder.FLAG_ONEWAY);
+        } catch (RemoteException e) {
+            Log.d(TAG, "Client of session " + session.id + " is gone: " + e.getMessage());
+        } finally {
+            data.recycle();
+        }
+    }
+
+    private void onClientDied(Session session) {
+        Log.d(TAG, "Client of session " + session.id + " died");
+
+        remove(session);
+        int pid = session.host.getPid();
+        if (pid > 0 && !session.host.hasExited()) {
+            // Same as closing a terminal
+            try {
+                Os.kill(pid, OsConstants.SIGHUP);
+            } catch (ErrnoException e) {
+                Log.w(TAG, "kill " + pid + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void sweep() {
+        long now = SystemClock.elapsedRealtime();
+        for (Session session : sessions.values()) {
+            long exitTime = session.exitTime;
+            if (exitTime != 0 && now - exitTime > RETENTION_MILLIS) {
+                remove(session);
+            }
+        }
+    }
+}
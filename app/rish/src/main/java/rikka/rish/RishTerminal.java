@@ -1,21 +1,29 @@
 package rikka.rish;
 
+import android.os.Binder;
 import android.os.Parcel;
 import android.os.RemoteException;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.util.Log;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
 import java.io.File;
 import java.io.FileDescriptor;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class RishTerminal {
 
     private static final String TAG = "RishTerminal";
 
+    private static final long EXIT_CALLBACK_TIMEOUT = 1000;
+
     public static int getFd(FileDescriptor[] fileDescriptor, int i) {
         if (fileDescriptor == null) {
             return -1;
@@ -38,6 +46,38 @@ public class RishTerminal {
     private int ttyFd = -1;
     private int exitCode;
 
+    /**
+     * Issued by the server, 0 if it does not know about sessions.
+     */
+    private int sessionId;
+
+    /**
+     * Whether the server calls {@link #token} when the host exits.
+     */
+    private boolean exitCallback;
+
+    private final CountDownLatch exited = new CountDownLatch(1);
+    private volatile int pushedExitCode;
+
+    /**
+     * Lets the server notice when this process is gone, and receives the exit code.
+     */
+    private final Binder token = new Binder() {
+
+        @Override
+        protected boolean onTransact(int code, @NonNull Parcel data, @Nullable Parcel reply, int flags) throws RemoteException {
+            if (code == RishConfig.CALLBACK_onExit) {
+                data.enforceInterface(RishConfig.getInterfaceToken());
+                // Session id, the token belongs to this terminal anyway
+                data.readInt();
+                pushedExitCode = data.readInt();
+                exited.countDown();
+                return true;
+            }
+            return super.onTransact(code, data, reply, flags);
+        }
+    };
+
     public RishTerminal(String[] argv) throws ErrnoException, RemoteException {
         this.argv = argv;
         this.tty = prepare();
@@ -72,8 +112,12 @@ public class RishTerminal {
             data.writeStringArray(argv);
             data.writeStringArray(env);
             data.writeString(dir);
+            data.writeStrongBinder(token);
             RishConfig.getBinder().transact(RishConfig.getTransactionCode(RishConfig.TRANSACTION_createHost), data, reply, 0);
             reply.readException();
+            sessionId = reply.dataAvail() >= 4 ? reply.readInt() : 0;
+            int hostFlags = reply.dataAvail() >= 4 ? reply.readInt() : 0;
+            exitCallback = (hostFlags & RishConstants.HOST_EXIT_CALLBACK) != 0;
         } finally {
             data.recycle();
             reply.recycle();
@@ -114,6 +158,7 @@ public class RishTerminal {
         try {
             data.writeInterfaceToken(RishConfig.getInterfaceToken());
             data.writeLong(size);
+            data.writeInt(sessionId);
             RishConfig.getBinder().transact(RishConfig.getTransactionCode(RishConfig.TRANSACTION_setWindowSize), data, null, 0);
             reply.readException();
         } finally {
@@ -130,7 +175,8 @@ public class RishTerminal {
 
         try {
             data.writeInterfaceToken(RishConfig.getInterfaceToken());
-            RishConfig.getBinder().transact(RishConfig.getTransactionCode(RishConfig.TRANSACTION_getExitCode), data, null, 0);
+            data.writeInt(sessionId);
+            RishConfig.getBinder().transact(RishConfig.getTransactionCode(RishConfig.TRANSACTION_getExitCode), data, reply, 0);
             reply.readException();
             return reply.readInt();
         } finally {
@@ -143,6 +189,10 @@ public class RishTerminal {
         Log.d(TAG, "waitFor");
 
         waitForProcessExit();
+        if (exitCallback) {
+            exitCode = awaitExitCallback();
+            return exitCode;
+        }
         try {
             exitCode = requestExitCode();
         } catch (Throwable e) {
@@ -152,6 +202,25 @@ public class RishTerminal {
         return exitCode;
     }
 
+    /**
+     * The output has ended, the exit code usually follows right away. Asks for it now and then in
+     * case the call is lost, this also notices a dead server.
+     */
+    private int awaitExitCallback() {
+        try {
+            while (!exited.await(EXIT_CALLBACK_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                int code = requestExitCode();
+                if (code != Integer.MAX_VALUE) {
+                    return code;
+                }
+            }
+            return pushedExitCode;
+        } catch (Throwable e) {
+            Log.w(TAG, Log.getStackTraceString(e));
+            return -1;
+        }
+    }
+
     public int getExitCode() {
         return exitCode;
     }
@@ -4,6 +4,14 @@ public class SystemProperties {
     public static String get(String name, String defaultValue) {
         return defaultValue;
     }
+
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        return defaultValue;
+    }
+
+    public static int getInt(String name, int defaultValue) {
+        return defaultValue;
+    }
     
     public static void set(String name, String value) {
         // Stub implementation
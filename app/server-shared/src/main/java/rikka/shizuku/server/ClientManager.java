@@ -8,6 +8,7 @@ import java.util.Collections;
 import java.util.List;
 
 import moe.shizuku.server.IShizukuApplication;
+import rikka.shizuku.server.util.CopyOnWriteLongMap;
 import rikka.shizuku.server.util.Logger;
 
 public class ClientManager<ConfigMgr extends ConfigManager> {
@@ -15,7 +16,16 @@ public class ClientManager<ConfigMgr extends ConfigManager> {
     protected static final Logger LOGGER = new Logger("UserServiceRecord");
 
     private final ConfigMgr configManager;
-    private final List<ClientRecord> clientRecords = Collections.synchronizedList(new ArrayList<>());
+    private static final ClientRecord[] EMPTY = new ClientRecord[0];
+
+    // (uid, pid) -> record, and uid -> records of that uid. Lookups happen on every binder call
+    // and never take a lock; updates only happen on attach and binder death.
+    private final CopyOnWriteLongMap<ClientRecord> clientsByProcess = new CopyOnWriteLongMap<>();
+    private final CopyOnWriteLongMap<ClientRecord[]> clientsByUid = new CopyOnWriteLongMap<>();
+
+    private static long key(int uid, int pid) {
+        return ((long) uid << 32) | (pid & 0xffffffffL);
+    }
 
     public ClientManager(ConfigMgr configManager) {
         this.configManager = configManager;
@@ -26,24 +36,17 @@ public class ClientManager<ConfigMgr extends ConfigManager> {
     }
 
     public List<ClientRecord> findClients(int uid) {
-        synchronized (this) {
-            List<ClientRecord> res = new ArrayList<>();
-            for (ClientRecord clientRecord : clientRecords) {
-                if (clientRecord.uid == uid) {
-                    res.add(clientRecord);
-                }
-            }
-            return res;
+        ClientRecord[] records = clientsByUid.get(uid);
+        if (records == null) {
+            return new ArrayList<>();
         }
+        List<ClientRecord> res = new ArrayList<>(records.length);
+        Collections.addAll(res, records);
+        return res;
     }
 
     public ClientRecord findClient(int uid, int pid) {
-        for (ClientRecord clientRecord : clientRecords) {
-            if (clientRecord.pid == pid && clientRecord.uid == uid) {
-                return clientRecord;
-            }
-        }
-        return null;
+        return clientsByProcess.get(key(uid, pid));
     }
 
     public ClientRecord requireClient(int callingUid, int callingPid) {
@@ -71,7 +74,7 @@ public class ClientManager<ConfigMgr extends ConfigManager> {
         }
 
         IBinder binder = client.asBinder();
-        IBinder.DeathRecipient deathRecipient = () -> clientRecords.remove(clientRecord);
+        IBinder.DeathRecipient deathRecipient = () -> removeClient(clientRecord);
         try {
             binder.linkToDeath(deathRecipient, 0);
         } catch (RemoteException e) {
@@ -79,9 +82,46 @@ public class ClientManager<ConfigMgr extends ConfigManager> {
             return null;
         }
 
-        clientRecords.add(clientRecord);
+        synchronized (this) {
+            ClientRecord previous = clientsByProcess.put(key(uid, pid), clientRecord);
+            ClientRecord[] records = clientsByUid.get(uid);
+            if (records == null) {
+                records = EMPTY;
+            }
+            List<ClientRecord> updated = new ArrayList<>(records.length + 1);
+            for (ClientRecord record : records) {
+                if (record != previous) {
+                    updated.add(record);
+                }
+            }
+            updated.add(clientRecord);
+            clientsByUid.put(uid, updated.toArray(EMPTY));
+        }
         return clientRecord;
     }
+
+    private void removeClient(ClientRecord clientRecord) {
+        synchronized (this) {
+            // A newer record may already live under the same (uid, pid) after pid reuse.
+            clientsByProcess.remove(key(clientRecord.uid, clientRecord.pid), clientRecord);
+
+            ClientRecord[] records = clientsByUid.get(clientRecord.uid);
+            if (records == null) {
+                return;
+            }
+            List<ClientRecord> updated = new ArrayList<>(records.length);
+            for (ClientRecord record : records) {
+                if (record != clientRecord) {
+                    updated.add(record);
+                }
+            }
+            if (updated.isEmpty()) {
+                clientsByUid.remove(clientRecord.uid);
+            } else if (updated.size() != records.length) {
+                clientsByUid.put(clientRecord.uid, updated.toArray(EMPTY));
+            }
+        }
+    }
 }
 
 
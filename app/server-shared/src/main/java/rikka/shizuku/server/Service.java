@@ -6,6 +6,7 @@ import android.os.IBinder;
 import android.os.Parcel;
 import android.os.RemoteException;
 import android.os.SELinux;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.system.Os;
 
@@ -103,17 +104,23 @@ public abstract class Service<
     }
 
     public final void enforceCallingPermission(String func) {
-        int callingUid = Binder.getCallingUid();
-        int callingPid = Binder.getCallingPid();
+        enforceCallingPermission(func, Binder.getCallingUid(), Binder.getCallingPid());
+    }
 
+    /**
+     * @return the client record of the caller, which may be {@code null} if the caller is
+     * ourselves or is allowed by {@link #checkCallerPermission}
+     */
+    @Nullable
+    private ClientRecord enforceCallingPermission(String func, int callingUid, int callingPid) {
         if (callingUid == OsUtils.getUid()) {
-            return;
+            return null;
         }
 
         ClientRecord clientRecord = clientManager.findClient(callingUid, callingPid);
 
         if (checkCallerPermission(func, callingUid, callingPid, clientRecord)) {
-            return;
+            return clientRecord;
         }
 
         if (clientRecord == null) {
@@ -131,38 +138,161 @@ public abstract class Service<
             LOGGER.w(msg);
             throw new SecurityException(msg);
         }
+        return clientRecord;
     }
 
+    /**
+     * Forwards a transaction to {@code targetBinder} with our identity.
+     * <p>
+     * This is the hottest path of the server, so it does nothing beyond the permission check and
+     * the copy: the client record is looked up once, and the interface descriptor (an extra IPC to
+     * the target) and log formatting are left to {@link TransactionTracer}, which is off by default.
+     * The payload has to be copied because {@code transact} sends a parcel from its start, where
+     * our own header is; {@link Parcel#obtain()} hands out pooled parcels, so no new one is
+     * allocated for it.
+     */
     public final void transactRemote(Parcel data, Parcel reply, int flags) throws RemoteException {
-        enforceCallingPermission("transactRemote");
+        int callingUid = Binder.getCallingUid();
+        int callingPid = Binder.getCallingPid();
+        ClientRecord clientRecord = enforceCallingPermission("transactRemote", callingUid, callingPid);
 
         IBinder targetBinder = data.readStrongBinder();
         int targetCode = data.readInt();
         int targetFlags;
 
-        int callingUid = Binder.getCallingUid();
-        int callingPid = Binder.getCallingPid();
-        ClientRecord clientRecord = clientManager.findClient(callingUid, callingPid);
-
         if (clientRecord != null && clientRecord.apiVersion >= 13) {
             targetFlags = data.readInt();
         } else {
             targetFlags = flags;
         }
 
-        LOGGER.d("transact: uid=%d, descriptor=%s, code=%d", Binder.getCallingUid(), targetBinder.getInterfaceDescriptor(), targetCode);
-        Parcel newData = Parcel.obtain();
+        long id = Binder.clearCallingIdentity();
         try {
-            newData.appendFrom(data, data.dataPosition(), data.dataAvail());
-        } catch (Throwable tr) {
-            LOGGER.w(tr, "appendFrom");
-            return;
+            forward(callingUid, targetBinder, targetCode, data, data.dataPosition(), data.dataAvail(), reply, targetFlags);
+        } finally {
+            Binder.restoreCallingIdentity(id);
         }
+    }
+
+    /**
+     * Forwards a batch of transactions in one call, see
+     * {@link ShizukuApiConstants#BINDER_TRANSACTION_transactBatch} for the format.
+     * <p>
+     * The permission is checked and the calling identity is cleared once for the whole batch.
+     * Entries run in order on this binder thread. A failed entry is one whose {@code transact}
+     * returned {@code false} or threw; with {@code BATCH_FLAG_STOP_ON_ERROR} the entries after it
+     * are skipped and not reported.
+     */
+    public final void transactRemoteBatch(Parcel data, Parcel reply, int flags) throws RemoteException {
+        int callingUid = Binder.getCallingUid();
+        int callingPid = Binder.getCallingPid();
+        enforceCallingPermission("transactRemoteBatch", callingUid, callingPid);
+
+        int batchFlags = data.readInt();
+        int count = data.readInt();
+        if (count < 0 || count > ShizukuApiConstants.BATCH_MAX_SIZE) {
+            throw new IllegalArgumentException("invalid batch size " + count);
+        }
+
+        boolean stopOnError = (batchFlags & ShizukuApiConstants.BATCH_FLAG_STOP_ON_ERROR) != 0;
+        // Nothing is read back from a oneway call to us either
+        boolean oneway = (batchFlags & ShizukuApiConstants.BATCH_FLAG_ONEWAY) != 0
+                || (flags & IBinder.FLAG_ONEWAY) != 0 || reply == null;
+
+        int executed = 0;
+        int results = -1;
+        if (!oneway) {
+            results = reply.dataPosition();
+            reply.writeInt(0);
+        }
+
+        Parcel entryReply = oneway ? null : Parcel.obtain();
+        long id = Binder.clearCallingIdentity();
         try {
-            long id = Binder.clearCallingIdentity();
-            targetBinder.transact(targetCode, newData, reply, targetFlags);
+            for (int i = 0; i < count; i++) {
+                IBinder targetBinder = data.readStrongBinder();
+                int targetCode = data.readInt();
+                int targetFlags = data.readInt();
+                int length = data.readInt();
+                int offset = data.dataPosition();
+                if (length < 0 || length > data.dataAvail()) {
+                    throw new IllegalArgumentException("invalid payload length " + length + " of entry " + i);
+                }
+                data.setDataPosition(offset + length);
+
+                if (oneway) {
+                    targetFlags |= IBinder.FLAG_ONEWAY;
+                } else {
+                    entryReply.setDataSize(0);
+                }
+
+                int result;
+                if (targetBinder == null) {
+                    result = ShizukuApiConstants.BATCH_RESULT_FAILED;
+                } else {
+                    try {
+                        result = forward(callingUid, targetBinder, targetCode, data, offset, length, entryReply, targetFlags)
+                                ? ShizukuApiConstants.BATCH_RESULT_OK : ShizukuApiConstants.BATCH_RESULT_FAILED;
+                    } catch (RemoteException e) {
+                        LOGGER.w("transactRemoteBatch: entry %d: %s", i, e);
+                        result = ShizukuApiConstants.BATCH_RESULT_REMOTE_EXCEPTION;
+                    }
+                }
+                executed++;
+
+                if (!oneway) {
+                    int replySize = result == ShizukuApiConstants.BATCH_RESULT_OK ? entryReply.dataSize() : 0;
+                    reply.writeInt(result);
+                    reply.writeInt(replySize);
+                    if (replySize > 0) {
+                        reply.appendFrom(entryReply, 0, replySize);
+                    }
+                }
+
+                if (stopOnError && result != ShizukuApiConstants.BATCH_RESULT_OK) {
+                    break;
+                }
+            }
+        } finally {
             Binder.restoreCallingIdentity(id);
+            if (entryReply != null) {
+                entryReply.recycle();
+            }
+        }
+
+        if (!oneway) {
+            int end = reply.dataPosition();
+            reply.setDataPosition(results);
+            reply.writeInt(executed);
+            reply.setDataPosition(end);
+        }
+    }
+
+    /**
+     * Copies {@code length} bytes of {@code data} from {@code offset} into a pooled parcel and
+     * transacts it. The caller clears the calling identity.
+     */
+    private static boolean forward(int callingUid, IBinder targetBinder, int targetCode, Parcel data, int offset, int length,
+                                   @Nullable Parcel reply, int targetFlags) throws RemoteException {
+        boolean tracing = TransactionTracer.isEnabled();
+        long start = tracing ? SystemClock.elapsedRealtimeNanos() : 0;
+        boolean ok = false;
+
+        Parcel newData = Parcel.obtain();
+        try {
+            try {
+                newData.appendFrom(data, offset, length);
+            } catch (Throwable tr) {
+                LOGGER.w(tr, "appendFrom");
+                return false;
+            }
+            ok = targetBinder.transact(targetCode, newData, reply, targetFlags);
+            return ok;
         } finally {
+            if (tracing) {
+                TransactionTracer.record(callingUid, targetBinder, targetCode, newData.dataSize(),
+                        reply != null ? reply.dataSize() : 0, start, ok);
+            }
             newData.recycle();
         }
     }
@@ -310,11 +440,13 @@ public abstract class Service<
         LOGGER.d("newProcess: uid=%d, cmd=%s, env=%s, dir=%s", Binder.getCallingUid(), Arrays.toString(cmd), Arrays.toString(env), dir);
 
         java.lang.Process process;
+        long spawnStart = SystemClock.elapsedRealtimeNanos();
         try {
             process = Runtime.getRuntime().exec(cmd, env, dir != null ? new File(dir) : null);
         } catch (IOException e) {
             throw new IllegalStateException(e.getMessage());
         }
+        SpawnStats.record(SpawnStats.Kind.PROCESS, spawnStart);
 
         ClientRecord clientRecord = clientManager.findClient(Binder.getCallingUid(), Binder.getCallingPid());
         IBinder token = clientRecord != null ? clientRecord.client.asBinder() : null;
@@ -329,6 +461,10 @@ public abstract class Service<
             data.enforceInterface(ShizukuApiConstants.BINDER_DESCRIPTOR);
             transactRemote(data, reply, flags);
             return true;
+        } else if (code == ShizukuApiConstants.BINDER_TRANSACTION_transactBatch) {
+            data.enforceInterface(ShizukuApiConstants.BINDER_DESCRIPTOR);
+            transactRemoteBatch(data, reply, flags);
+            return true;
         } else if (code == 14 /* attachApplication <= v12 */) {
             data.enforceInterface(ShizukuApiConstants.BINDER_DESCRIPTOR);
             IBinder binder = data.readStrongBinder();
@@ -0,0 +1,82 @@
+package rikka.shizuku.server;
+
+import android.os.SystemClock;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+import rikka.shizuku.server.util.LatencyHistogram;
+import rikka.shizuku.server.util.Logger;
+
+/**
+ * Latency of starting processes. Spawns are rare, so every one is logged with the running
+ * percentiles of its kind.
+ */
+public class SpawnStats {
+
+    private static final Logger LOGGER = new Logger("SpawnStats");
+
+    public enum Kind {
+
+        /**
+         * {@code newProcess}, until {@link Runtime#exec} returns.
+         */
+        PROCESS,
+
+        /**
+         * User service on a standby host of {@link Spawner}, until its binder arrives.
+         */
+        USER_SERVICE_WARM,
+
+        /**
+         * User service started from a shell, until its binder arrives.
+         */
+        USER_SERVICE_COLD,
+    }
+
+    private static final Map<Kind, LatencyHistogram> STATS = new EnumMap<>(Kind.class);
+
+    /**
+     * @param startNanos {@link SystemClock#elapsedRealtimeNanos()} before the spawn
+     */
+    public static void record(Kind kind, long startNanos) {
+        long micros = (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000;
+        String line;
+        synchronized (STATS) {
+            LatencyHistogram latency = STATS.get(kind);
+            if (latency == null) {
+                latency = new LatencyHistogram();
+                STATS.put(kind, latency);
+            }
+            latency.add(micros);
+            line = format(kind, latency);
+        }
+        LOGGER.i("spawn took %d us, %s", micros, line);
+    }
+
+    public static void reset() {
+        synchronized (STATS) {
+            STATS.clear();
+        }
+    }
+
+    public static String dump() {
+        StringBuilder sb = new StringBuilder("spawn statistics (latency in us):");
+        synchronized (STATS) {
+            if (STATS.isEmpty()) {
+                sb.append(" none");
+            }
+            for (Map.Entry<Kind, LatencyHistogram> entry : STATS.entrySet()) {
+                sb.append("\n  ").append(format(entry.getKey(), entry.getValue()));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String format(Kind kind, LatencyHistogram latency) {
+        return String.format(Locale.ENGLISH, "%s: count=%d, p50=%d, p90=%d, p99=%d, max=%d",
+                kind.name().toLowerCase(Locale.ENGLISH), latency.getCount(), latency.percentile(0.5),
+                latency.percentile(0.9), latency.percentile(0.99), latency.getMax());
+    }
+}
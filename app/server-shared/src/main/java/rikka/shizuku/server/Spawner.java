@@ -0,0 +1,247 @@
+package rikka.shizuku.server;
+
+import android.os.SystemProperties;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import rikka.shizuku.server.util.Logger;
+
+/**
+ * Keeps processes started ahead of time for user services, so a request does not wait for them.
+ * <p>
+ * There are two pools of {@link #getPoolSize()} processes each, refilled in the background after
+ * every use:
+ * <ul>
+ * <li>Idle {@code sh} processes that read the command from stdin, used when a user service has to
+ * be started the usual way.</li>
+ * <li>Standby hosts: {@code app_process} already running
+ * {@code moe.shizuku.starter.ServiceStarter --standby}, with the VM and the system context up.
+ * The arguments of a user service are written to stdin, one per line, and the host loads the
+ * service once stdin is closed. Closing stdin without arguments makes it exit.</li>
+ * </ul>
+ * The host command comes from a supplier and may change, for example when the manager app is
+ * updated; hosts started with an older command are discarded.
+ */
+public class Spawner {
+
+    private static final Logger LOGGER = new Logger("Spawner");
+
+    public static final String PROPERTY_POOL_SIZE = "debug.shizuku.spawner_pool";
+
+    private static final int DEFAULT_POOL_SIZE = 1;
+    private static final int MAX_POOL_SIZE = 4;
+
+    private static final class Host {
+
+        final Process process;
+        final String cmd;
+
+        Host(Process process, String cmd) {
+            this.process = process;
+            this.cmd = cmd;
+        }
+    }
+
+    private final Supplier<String> hostCommand;
+    private final Executor executor = Executors.newSingleThreadExecutor();
+    private final ArrayDeque<Process> shells = new ArrayDeque<>();
+    private final ArrayDeque<Host> hosts = new ArrayDeque<>();
+    private volatile int poolSize = readPoolSize();
+
+    /**
+     * @param hostCommand shell command that starts a standby host, or returns {@code null} if
+     *                    there are no standby hosts
+     */
+    public Spawner(Supplier<String> hostCommand) {
+        this.hostCommand = hostCommand;
+    }
+
+    private static int readPoolSize() {
+        try {
+            return clamp(SystemProperties.getInt(PROPERTY_POOL_SIZE, DEFAULT_POOL_SIZE));
+        } catch (Throwable tr) {
+            return DEFAULT_POOL_SIZE;
+        }
+    }
+
+    private static int clamp(int size) {
+        return Math.max(0, Math.min(size, MAX_POOL_SIZE));
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * Sets the number of processes kept in each pool, 0 turns the pools off.
+     */
+    public void setPoolSize(int size) {
+        poolSize = clamp(size);
+        executor.execute(this::trimAndFill);
+    }
+
+    /**
+     * Fills the pools in the background.
+     */
+    public void prefill() {
+        executor.execute(this::trimAndFill);
+    }
+
+    /**
+     * Writes {@code cmd} to a shell and waits for the shell to exit.
+     *
+     * @return exit code of the shell
+     */
+    public int runShell(String cmd) throws IOException, InterruptedException {
+        Process shell = takeShell();
+        prefill();
+        if (shell == null) {
+            shell = startShell();
+        }
+
+        OutputStream os = shell.getOutputStream();
+        os.write(cmd.getBytes());
+        os.flush();
+        os.close();
+        return shell.waitFor();
+    }
+
+    /**
+     * Hands a user service to a standby host.
+     *
+     * @param args arguments of {@code ServiceStarter}, none of them may contain a line break
+     * @return {@code false} if no host is ready, the service has to be started from a shell then
+     */
+    public boolean startOnHost(String[] args) {
+        Host host = takeHost();
+        prefill();
+        if (host == null) {
+            return false;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (String arg : args) {
+            sb.append(arg).append('\n');
+        }
+        try {
+            OutputStream os = host.process.getOutputStream();
+            os.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            os.close();
+        } catch (IOException e) {
+            LOGGER.w("standby host is gone: %s", e);
+            host.process.destroy();
+            return false;
+        }
+        return true;
+    }
+
+    @Nullable
+    private Process takeShell() {
+        synchronized (shells) {
+            Process shell;
+            while ((shell = shells.poll()) != null) {
+                if (shell.isAlive()) {
+                    return shell;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Nullable
+    private Host takeHost() {
+        String cmd = hostCommand.get();
+        synchronized (hosts) {
+            Host host;
+            while ((host = hosts.poll()) != null) {
+                if (host.process.isAlive() && host.cmd.equals(cmd)) {
+                    return host;
+                }
+                retire(host.process);
+            }
+        }
+        return null;
+    }
+
+    private static Process startShell() throws IOException {
+        return Runtime.getRuntime().exec("sh");
+    }
+
+    private static Process startHost(String cmd) throws IOException {
+        return Runtime.getRuntime().exec(new String[]{"sh", "-c", cmd});
+    }
+
+    /**
+     * Both kinds exit once stdin is closed without a command.
+     */
+    private static void retire(Process process) {
+        try {
+            process.getOutputStream().close();
+        } catch (IOException e) {
+            process.destroy();
+        }
+    }
+
+    /**
+     * Runs on {@link #executor} only, so the pools never grow past the size concurrently.
+     */
+    private void trimAndFill() {
+        int size = poolSize;
+        String cmd = size > 0 ? hostCommand.get() : null;
+
+        synchronized (shells) {
+            while (shells.size() > size) {
+                retire(shells.poll());
+            }
+        }
+        synchronized (hosts) {
+            hosts.removeIf(host -> {
+                if (host.cmd.equals(cmd) && host.process.isAlive()) {
+                    return false;
+                }
+                retire(host.process);
+                return true;
+            });
+            while (hosts.size() > size) {
+                retire(hosts.poll().process);
+            }
+        }
+
+        try {
+            while (true) {
+                synchronized (shells) {
+                    if (shells.size() >= size) {
+                        break;
+                    }
+                }
+                Process shell = startShell();
+                synchronized (shells) {
+                    shells.add(shell);
+                }
+            }
+
+            while (cmd != null) {
+                synchronized (hosts) {
+                    if (hosts.size() >= size) {
+                        break;
+                    }
+                }
+                Process process = startHost(cmd);
+                synchronized (hosts) {
+                    hosts.add(new Host(process, cmd));
+                }
+                LOGGER.v("standby host started");
+            }
+        } catch (IOException e) {
+            LOGGER.w("unable to fill the spawner pools: %s", e);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package rikka.shizuku.server;
+
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import rikka.shizuku.server.util.LatencyHistogram;
+import rikka.shizuku.server.util.Logger;
+
+/**
+ * Opt-in statistics of the transactions forwarded by {@code transactRemote}, per interface
+ * descriptor and transaction code: call count, bytes sent and received, and latency percentiles.
+ * <p>
+ * Off by default, so the forwarding path pays for nothing but one volatile read. It is turned on
+ * with the {@value #PROPERTY} system property (read on first use) or
+ * {@link #setEnabled(boolean)}. While on, a report is logged every {@link #REPORT_INTERVAL}.
+ */
+public class TransactionTracer {
+
+    private static final Logger LOGGER = new Logger("TransactionTracer");
+
+    public static final String PROPERTY = "debug.shizuku.trace_transact";
+
+    private static final long REPORT_INTERVAL = 60 * 1000;
+
+    private static volatile boolean enabled = readProperty();
+
+    // Binder proxies are unique per remote object in a process, so the descriptor is fetched once
+    private static final Map<IBinder, String> DESCRIPTORS = new WeakHashMap<>();
+
+    private static final Map<Key, Stats> STATS = new HashMap<>();
+
+    private static long lastReport = SystemClock.elapsedRealtime();
+
+    private static boolean readProperty() {
+        try {
+            return SystemProperties.getBoolean(PROPERTY, false);
+        } catch (Throwable tr) {
+            return false;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        TransactionTracer.enabled = enabled;
+        if (!enabled) {
+            LOGGER.i(dump());
+            reset();
+        }
+    }
+
+    private static final class Key {
+
+        final String descriptor;
+        final int code;
+
+        Key(String descriptor, int code) {
+            this.descriptor = descriptor;
+            this.code = code;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return code == key.code && descriptor.equals(key.descriptor);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * descriptor.hashCode() + code;
+        }
+    }
+
+    private static final class Stats {
+
+        long failed;
+        long bytesIn;
+        long bytesOut;
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        void add(int dataSize, int replySize, long micros, boolean ok) {
+            if (!ok) {
+                failed++;
+            }
+            bytesIn += dataSize;
+            bytesOut += replySize;
+            latency.add(micros);
+        }
+    }
+
+    private static String getDescriptor(IBinder binder) {
+        synchronized (DESCRIPTORS) {
+            String descriptor = DESCRIPTORS.get(binder);
+            if (descriptor != null) {
+                return descriptor;
+            }
+        }
+        String descriptor;
+        try {
+            descriptor = binder.getInterfaceDescriptor();
+        } catch (Throwable tr) {
+            descriptor = null;
+        }
+        if (descriptor == null) {
+            descriptor = "<unknown>";
+        }
+        synchronized (DESCRIPTORS) {
+            DESCRIPTORS.put(binder, descriptor);
+        }
+        return descriptor;
+    }
+
+    /**
+     * @param startNanos {@link SystemClock#elapsedRealtimeNanos()} before the transaction
+     */
+    public static void record(int callingUid, IBinder binder, int code, int dataSize, int replySize,
+                              long startNanos, boolean ok) {
+        long micros = (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000;
+        String descriptor = getDescriptor(binder);
+        LOGGER.d("transact: uid=%d, descriptor=%s, code=%d, data=%d, reply=%d, %d us",
+                callingUid, descriptor, code, dataSize, replySize, micros);
+
+        String report = null;
+        synchronized (STATS) {
+            Key key = new Key(descriptor, code);
+            Stats stats = STATS.get(key);
+            if (stats == null) {
+                stats = new Stats();
+                STATS.put(key, stats);
+            }
+            stats.add(dataSize, replySize, micros, ok);
+
+            long now = SystemClock.elapsedRealtime();
+            if (now - lastReport >= REPORT_INTERVAL) {
+                lastReport = now;
+                report = dumpLocked();
+            }
+        }
+        if (report != null) {
+            LOGGER.i(report);
+        }
+    }
+
+    public static void reset() {
+        synchronized (STATS) {
+            STATS.clear();
+            lastReport = SystemClock.elapsedRealtime();
+        }
+    }
+
+    public static String dump() {
+        synchronized (STATS) {
+            return dumpLocked();
+        }
+    }
+
+    private static String dumpLocked() {
+        List<Map.Entry<Key, Stats>> entries = new ArrayList<>(STATS.entrySet());
+        entries.sort((a, b) -> Long.compare(b.getValue().latency.getCount(), a.getValue().latency.getCount()));
+
+        StringBuilder sb = new StringBuilder("transactRemote statistics (latency in us):");
+        if (entries.isEmpty()) {
+            sb.append(" none");
+        }
+        for (Map.Entry<Key, Stats> entry : entries) {
+            Key key = entry.getKey();
+            Stats stats = entry.getValue();
+            LatencyHistogram latency = stats.latency;
+            sb.append(String.format(Locale.ENGLISH,
+                    "\n  %s#%d: count=%d, failed=%d, in=%d B, out=%d B, p50=%d, p90=%d, p99=%d, max=%d",
+                    key.descriptor, key.code, latency.getCount(), stats.failed, stats.bytesIn, stats.bytesOut,
+                    latency.percentile(0.5), latency.percentile(0.9), latency.percentile(0.99), latency.getMax()));
+        }
+        return sb.toString();
+    }
+}
@@ -25,8 +25,24 @@ public class UserService {
         UserService.TAG = tag;
     }
 
+    /**
+     * The part of {@link #create} that does not depend on the service, which a standby host does
+     * ahead of time.
+     */
+    public static Context createSystemContext() {
+        return ActivityThread.systemMain().getSystemContext();
+    }
+
     @Nullable
     public static Pair<IBinder, String> create(String[] args) {
+        return create(args, null);
+    }
+
+    /**
+     * @param systemContext from {@link #createSystemContext()}, or {@code null} to create it here
+     */
+    @Nullable
+    public static Pair<IBinder, String> create(String[] args, @Nullable Context systemContext) {
         String name = null;
         String token = null;
         String pkg = null;
@@ -54,7 +70,9 @@ public class UserService {
         IBinder service;
 
         try {
-            Context systemContext = ActivityThread.systemMain().getSystemContext();
+            if (systemContext == null) {
+                systemContext = createSystemContext();
+            }
 
             DdmHandleAppName.setAppName(name != null ? name : pkg + ":user_service", 0);
 
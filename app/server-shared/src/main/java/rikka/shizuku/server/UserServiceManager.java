@@ -16,10 +16,12 @@ import android.content.pm.PackageInfo;
 import android.os.Binder;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.text.format.DateUtils;
 import android.util.ArrayMap;
 
-import java.io.OutputStream;
+import androidx.annotation.Nullable;
+
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -42,6 +44,7 @@ public abstract class UserServiceManager {
     private final Executor executor = Executors.newSingleThreadExecutor();
     private final Map<String, UserServiceRecord> userServiceRecords = Collections.synchronizedMap(new ArrayMap<>());
     private final Map<String, List<UserServiceRecord>> packageUserServiceRecords = Collections.synchronizedMap(new ArrayMap<>());
+    private final Spawner spawner = new Spawner(this::getUserServiceStandbyCmd);
 
     public UserServiceManager() {
     }
@@ -217,16 +220,31 @@ public abstract class UserServiceManager {
 
         LOGGER.v("Starting process for service record %s (%s)...", key, token);
 
+        record.spawnStartNanos = SystemClock.elapsedRealtimeNanos();
+
+        // Standby hosts run the default app_process without debug options
+        boolean cold = debug || (use32Bits && AbiUtil.has32Bit());
+        if (!cold) {
+            String[] args = {
+                    "--nice-name=" + packageName + ":" + processNameSuffix,
+                    "--token=" + token,
+                    "--package=" + packageName,
+                    "--class=" + classname,
+                    "--uid=" + callingUid
+            };
+            // Set first, the binder may arrive before startOnHost returns
+            record.spawnedWarm = true;
+            if (spawner.startOnHost(args)) {
+                LOGGER.v("Service record %s (%s) handed to a standby host", key, token);
+                return;
+            }
+            record.spawnedWarm = false;
+        }
+
         String cmd = getUserServiceStartCmd(record, key, token, packageName, classname, processNameSuffix, callingUid, use32Bits && AbiUtil.has32Bit(), debug);
         int exitCode;
         try {
-            java.lang.Process process = Runtime.getRuntime().exec("sh");
-            OutputStream os = process.getOutputStream();
-            os.write(cmd.getBytes());
-            os.flush();
-            os.close();
-
-            exitCode = process.waitFor();
+            exitCode = spawner.runShell(cmd);
         } catch (Throwable e) {
             throw new IllegalStateException(e.getMessage());
         }
@@ -239,6 +257,19 @@ public abstract class UserServiceManager {
             UserServiceRecord record, String key, String token, String packageName,
             String classname, String processNameSuffix, int callingUid, boolean use32Bits, boolean debug);
 
+    /**
+     * @return shell command that starts a standby host for user services (see {@link Spawner}),
+     * or {@code null} to always start them with {@link #getUserServiceStartCmd}
+     */
+    @Nullable
+    public String getUserServiceStandbyCmd() {
+        return null;
+    }
+
+    public Spawner getSpawner() {
+        return spawner;
+    }
+
     private void sendUserServiceLocked(IBinder binder, String token) {
         Map.Entry<String, UserServiceRecord> entry = null;
         for (Map.Entry<String, UserServiceRecord> e : userServiceRecords.entrySet()) {
@@ -256,6 +287,12 @@ public abstract class UserServiceManager {
 
         UserServiceRecord record = entry.getValue();
         record.setBinder(binder);
+
+        if (record.spawnStartNanos != 0) {
+            SpawnStats.record(record.spawnedWarm ? SpawnStats.Kind.USER_SERVICE_WARM : SpawnStats.Kind.USER_SERVICE_COLD,
+                    record.spawnStartNanos);
+            record.spawnStartNanos = 0;
+        }
     }
 
     public void attachUserService(IBinder binder, Bundle options) {
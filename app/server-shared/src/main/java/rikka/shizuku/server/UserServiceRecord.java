@@ -40,6 +40,10 @@ public abstract class UserServiceRecord {
     public boolean daemon;
     public boolean starting;
 
+    // For SpawnStats, set while the process is being started
+    volatile long spawnStartNanos;
+    volatile boolean spawnedWarm;
+
     public UserServiceRecord(int versionCode, boolean daemon) {
         this.versionCode = versionCode;
         this.token = UUID.randomUUID().toString() + "-" + System.currentTimeMillis();
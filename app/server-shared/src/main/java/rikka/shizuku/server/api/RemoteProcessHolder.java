@@ -5,12 +5,22 @@ import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import moe.shizuku.server.IRemoteProcess;
+import moe.shizuku.server.IRemoteProcessCallback;
+import rikka.rish.ProcessReaper;
 import rikka.shizuku.server.util.Logger;
 import rikka.shizuku.server.util.ParcelFileDescriptorUtil;
 
+/**
+ * The exit of the process is watched by {@link ProcessReaper}, which wakes up
+ * {@link #waitForTimeout} and calls the exit callbacks. If the kernel can't do that, a thread waits
+ * for the process once the first callback is added.
+ */
 public class RemoteProcessHolder extends IRemoteProcess.Stub {
 
     private static final Logger LOGGER = new Logger("RemoteProcessHolder");
@@ -18,10 +28,26 @@ public class RemoteProcessHolder extends IRemoteProcess.Stub {
     private final Process process;
     private ParcelFileDescriptor in;
     private ParcelFileDescriptor out;
+    private ParcelFileDescriptor err;
+
+    private final Object exitLock = new Object();
+    private final List<IRemoteProcessCallback> exitCallbacks = new ArrayList<>();
+    private final boolean exitWatched;
+    private boolean exited;
+    private boolean exitWaiterStarted;
 
     public RemoteProcessHolder(Process process, IBinder token) {
         this.process = process;
 
+        int pid = getPid(process);
+        ProcessReaper.Watch watch = pid > 0 ? ProcessReaper.watchExit(pid, this::onProcessExit) : null;
+        exitWatched = watch != null;
+        if (watch != null && !process.isAlive()) {
+            // Ended before the pidfd was opened, which may then belong to another process
+            watch.close();
+            dispatchExit();
+        }
+
         if (token != null) {
             try {
                 DeathRecipient deathRecipient = () -> {
@@ -41,8 +67,59 @@ public class RemoteProcessHolder extends IRemoteProcess.Stub {
         }
     }
 
+    private static int getPid(Process process) {
+        try {
+            Field field = process.getClass().getDeclaredField("pid");
+            field.setAccessible(true);
+            return field.getInt(process);
+        } catch (Throwable e) {
+            LOGGER.w("can't get the pid of %s: %s", process, e);
+            return -1;
+        }
+    }
+
+    /**
+     * Called on the reaper thread when the process has exited. Its status is collected by the
+     * reaper of {@link Process}, so {@code waitFor} only waits for that waitpid to return.
+     */
+    private void onProcessExit() {
+        try {
+            process.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        dispatchExit();
+    }
+
+    private void dispatchExit() {
+        List<IRemoteProcessCallback> callbacks;
+        synchronized (exitLock) {
+            if (exited) {
+                return;
+            }
+            exited = true;
+            exitLock.notifyAll();
+            callbacks = new ArrayList<>(exitCallbacks);
+            exitCallbacks.clear();
+        }
+
+        int exitValue = process.exitValue();
+        for (IRemoteProcessCallback callback : callbacks) {
+            notifyExit(callback, exitValue);
+        }
+    }
+
+    private static void notifyExit(IRemoteProcessCallback callback, int exitValue) {
+        try {
+            callback.onExit(exitValue);
+        } catch (RemoteException e) {
+            LOGGER.w("failed to notify exit: %s", e);
+        }
+    }
+
     @Override
-    public ParcelFileDescriptor getOutputStream() {
+    public synchronized ParcelFileDescriptor getOutputStream() {
         if (out == null) {
             try {
                 out = ParcelFileDescriptorUtil.pipeTo(process.getOutputStream());
@@ -54,7 +131,7 @@ public class RemoteProcessHolder extends IRemoteProcess.Stub {
     }
 
     @Override
-    public ParcelFileDescriptor getInputStream() {
+    public synchronized ParcelFileDescriptor getInputStream() {
         if (in == null) {
             try {
                 in = ParcelFileDescriptorUtil.pipeFrom(process.getInputStream());
@@ -66,12 +143,15 @@ public class RemoteProcessHolder extends IRemoteProcess.Stub {
     }
 
     @Override
-    public ParcelFileDescriptor getErrorStream() {
-        try {
-            return ParcelFileDescriptorUtil.pipeFrom(process.getErrorStream());
-        } catch (IOException e) {
-            throw new IllegalStateException(e);
+    public synchronized ParcelFileDescriptor getErrorStream() {
+        if (err == null) {
+            try {
+                err = ParcelFileDescriptorUtil.pipeFrom(process.getErrorStream());
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
         }
+        return err;
     }
 
     @Override
@@ -106,25 +186,46 @@ public class RemoteProcessHolder extends IRemoteProcess.Stub {
     @Override
     public boolean waitForTimeout(long timeout, String unitName) throws RemoteException {
         TimeUnit unit = TimeUnit.valueOf(unitName);
-        long startTime = System.nanoTime();
-        long rem = unit.toNanos(timeout);
+        try {
+            if (!exitWatched) {
+                return process.waitFor(timeout, unit);
+            }
 
-        do {
-            try {
-                exitValue();
-                return true;
-            } catch (IllegalThreadStateException ex) {
-                if (rem > 0) {
-                    try {
-                        Thread.sleep(
-                                Math.min(TimeUnit.NANOSECONDS.toMillis(rem) + 1, 100));
-                    } catch (InterruptedException e) {
-                        throw new IllegalStateException();
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            synchronized (exitLock) {
+                while (!exited) {
+                    long rem = deadline - System.nanoTime();
+                    if (rem <= 0) {
+                        return false;
                     }
+                    TimeUnit.NANOSECONDS.timedWait(exitLock, rem);
                 }
             }
-            rem = unit.toNanos(timeout) - (System.nanoTime() - startTime);
-        } while (rem > 0);
-        return false;
+            return true;
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void addExitCallback(IRemoteProcessCallback callback) {
+        synchronized (exitLock) {
+            if (!exited) {
+                exitCallbacks.add(callback);
+                if (!exitWatched && !exitWaiterStarted) {
+                    exitWaiterStarted = true;
+                    new Thread(() -> {
+                        try {
+                            process.waitFor();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        dispatchExit();
+                    }, "RemoteProcess-waitFor").start();
+                }
+                return;
+            }
+        }
+        notifyExit(callback, process.exitValue());
     }
 }
@@ -0,0 +1,165 @@
+package rikka.shizuku.server.util;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A map from primitive {@code long} keys to values, built for read-mostly data such as the
+ * client table that is consulted on every binder call.
+ * <p>
+ * Reads are lock-free and never box the key: they probe an immutable open-addressing table
+ * published through a volatile field. Writes are serialized and replace the whole table, which
+ * is fine because they only happen when clients attach or die.
+ */
+public class CopyOnWriteLongMap<V> {
+
+    private static final class Table {
+
+        static final Table EMPTY = new Table(new long[0], new Object[0], 0);
+
+        final long[] keys;
+        final Object[] values;
+        final int size;
+
+        Table(long[] keys, Object[] values, int size) {
+            this.keys = keys;
+            this.values = values;
+            this.size = size;
+        }
+    }
+
+    private volatile Table table = Table.EMPTY;
+
+    private static int indexFor(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private static Table allocate(int size) {
+        int capacity = 4;
+        while (capacity < size * 2) {
+            capacity <<= 1;
+        }
+        return new Table(new long[capacity], new Object[capacity], 0);
+    }
+
+    private static void insert(long[] keys, Object[] values, long key, Object value) {
+        int mask = keys.length - 1;
+        int i = indexFor(key, mask);
+        while (values[i] != null && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Nullable
+    public V get(long key) {
+        Table t = table;
+        if (t.size == 0) {
+            return null;
+        }
+        int mask = t.keys.length - 1;
+        int i = indexFor(key, mask);
+        while (true) {
+            Object value = t.values[i];
+            if (value == null) {
+                return null;
+            }
+            if (t.keys[i] == key) {
+                return (V) value;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    public int size() {
+        return table.size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        Table t = table;
+        List<V> res = new ArrayList<>(t.size);
+        for (Object value : t.values) {
+            if (value != null) {
+                res.add((V) value);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return the previous value, or {@code null}
+     */
+    public synchronized V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        V previous = get(key);
+        Table old = table;
+        int size = previous == null ? old.size + 1 : old.size;
+        Table next = allocate(size);
+        copyExcept(old, next, key, false);
+        insert(next.keys, next.values, key, value);
+        table = new Table(next.keys, next.values, size);
+        return previous;
+    }
+
+    /**
+     * @return the removed value, or {@code null} if there was none
+     */
+    public synchronized V remove(long key) {
+        V previous = get(key);
+        if (previous == null) {
+            return null;
+        }
+        removeLocked(key);
+        return previous;
+    }
+
+    /**
+     * Removes the entry only if it still maps to {@code expected}, so a late death notification
+     * for an old record cannot drop a newer one registered under the same key.
+     */
+    public synchronized boolean remove(long key, V expected) {
+        if (expected == null || get(key) != expected) {
+            return false;
+        }
+        removeLocked(key);
+        return true;
+    }
+
+    public synchronized void clear() {
+        table = Table.EMPTY;
+    }
+
+    private void removeLocked(long key) {
+        Table old = table;
+        int size = old.size - 1;
+        if (size == 0) {
+            table = Table.EMPTY;
+            return;
+        }
+        Table next = allocate(size);
+        copyExcept(old, next, key, true);
+        table = new Table(next.keys, next.values, size);
+    }
+
+    private static void copyExcept(Table from, Table to, long key, boolean skipKey) {
+        for (int i = 0; i < from.values.length; i++) {
+            Object value = from.values[i];
+            if (value == null || (skipKey && from.keys[i] == key)) {
+                continue;
+            }
+            insert(to.keys, to.values, from.keys[i], value);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package rikka.shizuku.server.util;
+
+import java.util.Arrays;
+
+/**
+ * A set of primitive {@code int}s using open addressing with linear probing, so membership
+ * checks neither box nor scan a list. Not thread-safe.
+ */
+public class IntHashSet {
+
+    private static final int FREE = 0;
+
+    private int[] keys;
+    private int size;
+
+    // 0 is the marker of a free slot, so it is tracked on its own
+    private boolean containsZero;
+
+    public IntHashSet() {
+        this(16);
+    }
+
+    public IntHashSet(int expectedSize) {
+        int capacity = 4;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        keys = new int[capacity];
+    }
+
+    private static int indexFor(int key, int mask) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    public boolean contains(int key) {
+        if (key == FREE) {
+            return containsZero;
+        }
+        int mask = keys.length - 1;
+        int i = indexFor(key, mask);
+        while (true) {
+            int k = keys[i];
+            if (k == FREE) {
+                return false;
+            }
+            if (k == key) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * @return {@code true} if the key was not in the set
+     */
+    public boolean add(int key) {
+        if (key == FREE) {
+            if (containsZero) {
+                return false;
+            }
+            containsZero = true;
+            size++;
+            return true;
+        }
+        int mask = keys.length - 1;
+        int i = indexFor(key, mask);
+        while (true) {
+            int k = keys[i];
+            if (k == FREE) {
+                break;
+            }
+            if (k == key) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        size++;
+        if (size * 2 > keys.length) {
+            rehash(keys.length << 1);
+        }
+        return true;
+    }
+
+    /**
+     * @return {@code true} if the key was in the set
+     */
+    public boolean remove(int key) {
+        if (key == FREE) {
+            if (!containsZero) {
+                return false;
+            }
+            containsZero = false;
+            size--;
+            return true;
+        }
+        int mask = keys.length - 1;
+        int i = indexFor(key, mask);
+        while (true) {
+            int k = keys[i];
+            if (k == FREE) {
+                return false;
+            }
+            if (k == key) {
+                break;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = FREE;
+        size--;
+
+        // Shift back the entries of the same probe chain so that lookups still find them
+        int j = (i + 1) & mask;
+        while (keys[j] != FREE) {
+            int k = keys[j];
+            int home = indexFor(k, mask);
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                keys[i] = k;
+                keys[j] = FREE;
+                i = j;
+            }
+            j = (j + 1) & mask;
+        }
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, FREE);
+        containsZero = false;
+        size = 0;
+    }
+
+    private void rehash(int capacity) {
+        int[] old = keys;
+        keys = new int[capacity];
+        int mask = capacity - 1;
+        for (int k : old) {
+            if (k == FREE) {
+                continue;
+            }
+            int i = indexFor(k, mask);
+            while (keys[i] != FREE) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = k;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package rikka.shizuku.server.util;
+
+/**
+ * Latencies in microseconds, bucketed by powers of two, which covers up to ~35 minutes in a fixed
+ * 32 slots. Percentiles are therefore upper bounds within a factor of two. Not thread-safe.
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 32;
+
+    private final long[] buckets = new long[BUCKETS];
+    private long count;
+    private long max;
+
+    public void add(long micros) {
+        count++;
+        max = Math.max(max, micros);
+        int bucket = micros <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+        buckets[Math.min(bucket, BUCKETS - 1)]++;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * @return upper bound in microseconds of the bucket holding the percentile
+     */
+    public long percentile(double p) {
+        long target = (long) Math.ceil(count * p);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= target) {
+                return Math.min(1L << i, max);
+            }
+        }
+        return max;
+    }
+}
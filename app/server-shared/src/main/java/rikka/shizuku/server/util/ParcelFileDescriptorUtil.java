@@ -10,7 +10,16 @@ import java.io.OutputStream;
 
 public class ParcelFileDescriptorUtil {
 
+    /**
+     * Pumped by {@link StreamPump}; a thread per stream is only used if the descriptor of the
+     * stream cannot be reached.
+     */
     public static ParcelFileDescriptor pipeFrom(InputStream inputStream) throws IOException {
+        ParcelFileDescriptor pumped = StreamPump.pipeFrom(inputStream);
+        if (pumped != null) {
+            return pumped;
+        }
+
         ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
         ParcelFileDescriptor readSide = pipe[0];
         ParcelFileDescriptor writeSide = pipe[1];
@@ -21,7 +30,15 @@ public class ParcelFileDescriptorUtil {
         return readSide;
     }
 
+    /**
+     * Pumped by {@link StreamPump}, see {@link #pipeFrom(InputStream)}.
+     */
     public static ParcelFileDescriptor pipeTo(OutputStream outputStream) throws IOException {
+        ParcelFileDescriptor pumped = StreamPump.pipeTo(outputStream);
+        if (pumped != null) {
+            return pumped;
+        }
+
         ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
         ParcelFileDescriptor readSide = pipe[0];
         ParcelFileDescriptor writeSide = pipe[1];
@@ -0,0 +1,77 @@
+package rikka.shizuku.server.util;
+
+import android.os.SystemClock;
+
+import java.lang.reflect.Method;
+
+/**
+ * Waits for the system services a server needs before it starts.
+ * <p>
+ * Every service is checked right away, so a server started on a running system does not wait
+ * at all. Only a missing service is polled, starting at {@link #INITIAL_POLL_INTERVAL} and
+ * doubling up to {@link #MAX_POLL_INTERVAL}, instead of sleeping a fixed amount of time.
+ */
+public class ServiceReadiness {
+
+    private static final Logger LOGGER = new Logger("ServiceReadiness");
+
+    private static final long INITIAL_POLL_INTERVAL = 10;
+    private static final long MAX_POLL_INTERVAL = 500;
+
+    private static Method checkService;
+    private static boolean unavailable;
+
+    /**
+     * Non-blocking lookup: unlike {@code getService}, {@code checkService} does not wait for the
+     * service itself, so the polling interval stays under our control.
+     */
+    private static synchronized boolean isServiceReady(String name) {
+        if (unavailable) {
+            return true;
+        }
+        try {
+            if (checkService == null) {
+                checkService = Class.forName("android.os.ServiceManager").getMethod("checkService", String.class);
+            }
+            return checkService.invoke(null, name) != null;
+        } catch (Throwable tr) {
+            // Hidden API is not reachable (an app process), where system services are up anyway
+            LOGGER.w("ServiceManager#checkService is not available: " + tr);
+            unavailable = true;
+            return true;
+        }
+    }
+
+    /**
+     * @param timeout maximum time to wait in milliseconds, or 0 to wait forever
+     * @return whether the service is registered
+     */
+    public static boolean waitForService(String name, long timeout) {
+        if (isServiceReady(name)) {
+            return true;
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        long interval = INITIAL_POLL_INTERVAL;
+        LOGGER.i("service " + name + " is not started, waiting");
+        while (true) {
+            long remaining = timeout > 0 ? start + timeout - SystemClock.elapsedRealtime() : interval;
+            if (remaining <= 0) {
+                LOGGER.w("service %s is still not started after %d ms", name, timeout);
+                return false;
+            }
+            SystemClock.sleep(Math.min(interval, remaining));
+            if (isServiceReady(name)) {
+                LOGGER.i("service %s started after %d ms", name, SystemClock.elapsedRealtime() - start);
+                return true;
+            }
+            interval = Math.min(interval * 2, MAX_POLL_INTERVAL);
+        }
+    }
+
+    public static void waitForServices(String... names) {
+        for (String name : names) {
+            waitForService(name, 0);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package rikka.shizuku.server.util;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Records how long each phase of a server start takes, so a slow start can be traced to the
+ * phase responsible from a single log line.
+ * <p>
+ * Sequential phases are recorded with {@link #mark(String)}, which measures from the previous
+ * mark. Work running on another thread takes a {@link #now()} timestamp first and reports it
+ * with {@link #mark(String, long)}.
+ */
+public class StartupTimeline {
+
+    private final String name;
+    private final long start;
+    private final List<String> phases = new ArrayList<>();
+    private long last;
+
+    public StartupTimeline(String name) {
+        this.name = name;
+        this.start = now();
+        this.last = start;
+    }
+
+    public static long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    public synchronized void mark(String phase) {
+        long now = now();
+        phases.add(String.format(Locale.ENGLISH, "%s %d ms", phase, now - last));
+        last = now;
+    }
+
+    public synchronized void mark(String phase, long since) {
+        phases.add(String.format(Locale.ENGLISH, "%s %d ms (parallel)", phase, now() - since));
+    }
+
+    public synchronized long elapsed() {
+        return now() - start;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "startup timeline of " + name + ": " + String.join(", ", phases) + ", total " + elapsed() + " ms";
+    }
+}
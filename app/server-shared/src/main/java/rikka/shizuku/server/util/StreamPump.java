@@ -0,0 +1,418 @@
+package rikka.shizuku.server.util;
+
+import static android.os.MessageQueue.OnFileDescriptorEventListener.EVENT_ERROR;
+import static android.os.MessageQueue.OnFileDescriptorEventListener.EVENT_INPUT;
+import static android.os.MessageQueue.OnFileDescriptorEventListener.EVENT_OUTPUT;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.MessageQueue;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies data between file descriptors on a small fixed set of event loops, instead of one
+ * blocking thread per stream.
+ * <p>
+ * Every transfer has a non-blocking source and sink that are watched with
+ * {@link MessageQueue#addOnFileDescriptorEventListener} on one of {@link #LOOP_COUNT} looper
+ * threads. When the source is readable, it is read into the loop's direct buffer until it would
+ * block or the buffer is full, and everything read is written with one call. If the sink cannot
+ * take all of it, the rest is moved to a pooled buffer and the source is not read again until
+ * the sink has drained it, so a slow reader never makes us buffer more than one chunk.
+ * <p>
+ * Descriptors of wrapped streams, such as those of a {@link Process}, are dup'ed (close-on-exec)
+ * before use. An input stream is still read through the stream object and only watched through
+ * the dup: when the process exits, its reaper drains the pipe into the stream under the stream's
+ * monitor, so reading the descriptor directly could reorder the end of the output. For the same
+ * reason the descriptor of an input stream is never made non-blocking, see
+ * {@link Transfer#readStream}.
+ */
+public class StreamPump {
+
+    private static final Logger LOGGER = new Logger("StreamPump");
+
+    private static final int LOOP_COUNT = 2;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 8;
+
+    private static final int SOURCE_EVENTS = EVENT_INPUT | EVENT_ERROR;
+    private static final int SINK_EVENTS = EVENT_OUTPUT | EVENT_ERROR;
+
+    private static final Loop[] LOOPS = new Loop[LOOP_COUNT];
+    private static final AtomicInteger NEXT_LOOP = new AtomicInteger();
+
+    private static final ArrayDeque<ByteBuffer> BUFFER_POOL = new ArrayDeque<>();
+
+    private static final class Loop {
+
+        final Handler handler;
+        final MessageQueue queue;
+        final ByteBuffer scratch = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        final byte[] bytes = new byte[BUFFER_SIZE];
+
+        Loop(int index) {
+            HandlerThread thread = new HandlerThread("StreamPump-" + index);
+            thread.setDaemon(true);
+            thread.start();
+            handler = new Handler(thread.getLooper());
+            queue = thread.getLooper().getQueue();
+        }
+    }
+
+    private static Loop nextLoop() {
+        int index = (NEXT_LOOP.getAndIncrement() & Integer.MAX_VALUE) % LOOP_COUNT;
+        synchronized (LOOPS) {
+            if (LOOPS[index] == null) {
+                LOOPS[index] = new Loop(index);
+            }
+            return LOOPS[index];
+        }
+    }
+
+    private static ByteBuffer acquireBuffer() {
+        synchronized (BUFFER_POOL) {
+            ByteBuffer buffer = BUFFER_POOL.poll();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    private static void releaseBuffer(ByteBuffer buffer) {
+        buffer.clear();
+        synchronized (BUFFER_POOL) {
+            if (BUFFER_POOL.size() < MAX_POOLED_BUFFERS) {
+                BUFFER_POOL.push(buffer);
+            }
+        }
+    }
+
+    /**
+     * @return a pipe whose read side receives everything from {@code inputStream}, or
+     * {@code null} if the descriptor of the stream cannot be reached
+     */
+    @Nullable
+    public static ParcelFileDescriptor pipeFrom(InputStream inputStream) throws IOException {
+        FileDescriptor fd = getFileDescriptor(inputStream);
+        if (fd == null) {
+            return null;
+        }
+
+        ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        ParcelFileDescriptor source = null;
+        try {
+            // Only watched, reads go through the stream
+            source = ParcelFileDescriptor.dup(fd);
+            setNonBlocking(pipe[1]);
+            new Transfer(nextLoop(), source, pipe[1], inputStream, inputStream).start();
+            return pipe[0];
+        } catch (ErrnoException | IOException e) {
+            pipe[0].close();
+            pipe[1].close();
+            if (source != null) {
+                source.close();
+            }
+            throw e instanceof ErrnoException ? ((ErrnoException) e).rethrowAsIOException() : (IOException) e;
+        }
+    }
+
+    /**
+     * @return a pipe whose write side is copied into {@code outputStream}, or {@code null} if
+     * the descriptor of the stream cannot be reached
+     */
+    @Nullable
+    public static ParcelFileDescriptor pipeTo(OutputStream outputStream) throws IOException {
+        FileDescriptor fd = getFileDescriptor(outputStream);
+        if (fd == null) {
+            return null;
+        }
+
+        ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        ParcelFileDescriptor sink = null;
+        try {
+            // O_NONBLOCK is shared with the stream, which is only closed by the transfer
+            sink = ParcelFileDescriptor.dup(fd);
+            setNonBlocking(sink);
+            setNonBlocking(pipe[0]);
+            new Transfer(nextLoop(), pipe[0], sink, null, outputStream).start();
+            return pipe[1];
+        } catch (ErrnoException | IOException e) {
+            pipe[0].close();
+            pipe[1].close();
+            if (sink != null) {
+                sink.close();
+            }
+            throw e instanceof ErrnoException ? ((ErrnoException) e).rethrowAsIOException() : (IOException) e;
+        }
+    }
+
+    private static void setNonBlocking(ParcelFileDescriptor pfd) throws ErrnoException {
+        FileDescriptor fd = pfd.getFileDescriptor();
+        int flags = Os.fcntlInt(fd, OsConstants.F_GETFL, 0);
+        Os.fcntlInt(fd, OsConstants.F_SETFL, flags | OsConstants.O_NONBLOCK);
+    }
+
+    /**
+     * Unwraps buffered streams, such as those of {@link Process}, down to the file stream.
+     */
+    @Nullable
+    private static FileDescriptor getFileDescriptor(Object stream) {
+        try {
+            for (int depth = 0; stream != null && depth < 4; depth++) {
+                if (stream instanceof FileInputStream) {
+                    return ((FileInputStream) stream).getFD();
+                }
+                if (stream instanceof FileOutputStream) {
+                    return ((FileOutputStream) stream).getFD();
+                }
+                Field field;
+                if (stream instanceof FilterInputStream) {
+                    field = FilterInputStream.class.getDeclaredField("in");
+                } else if (stream instanceof FilterOutputStream) {
+                    field = FilterOutputStream.class.getDeclaredField("out");
+                } else {
+                    break;
+                }
+                field.setAccessible(true);
+                stream = field.get(stream);
+            }
+        } catch (Throwable tr) {
+            LOGGER.w("can't get the descriptor of %s: %s", stream, tr);
+        }
+        return null;
+    }
+
+    private static final class Transfer {
+
+        final Loop loop;
+        final ParcelFileDescriptor sourcePfd;
+        final ParcelFileDescriptor sinkPfd;
+        final FileDescriptor source;
+        final FileDescriptor sink;
+
+        /**
+         * Read instead of {@link #source} if set, see the class documentation.
+         */
+        @Nullable
+        final InputStream sourceStream;
+
+        /**
+         * The stream {@link #source} or {@link #sink} was taken from, closed at the end.
+         */
+        final Closeable stream;
+
+        @Nullable
+        ByteBuffer pending;
+        boolean sourceEnded;
+        boolean finished;
+
+        final MessageQueue.OnFileDescriptorEventListener sourceListener = (fd, events) -> onSourceReady();
+        final MessageQueue.OnFileDescriptorEventListener sinkListener = (fd, events) -> onSinkReady();
+
+        Transfer(Loop loop, ParcelFileDescriptor source, ParcelFileDescriptor sink, @Nullable InputStream sourceStream,
+                 Closeable stream) {
+            this.loop = loop;
+            this.sourcePfd = source;
+            this.sinkPfd = sink;
+            this.source = source.getFileDescriptor();
+            this.sink = sink.getFileDescriptor();
+            this.sourceStream = sourceStream;
+            this.stream = stream;
+        }
+
+        void start() {
+            loop.queue.addOnFileDescriptorEventListener(source, SOURCE_EVENTS, sourceListener);
+        }
+
+        /**
+         * Errors are handled by trying to read, which then reports the end or the error.
+         */
+        private int onSourceReady() {
+            ByteBuffer buffer = loop.scratch;
+            buffer.clear();
+            try {
+                while (true) {
+                    boolean wouldBlock = false;
+                    while (buffer.hasRemaining()) {
+                        int n = read(buffer);
+                        if (n < 0) {
+                            break;
+                        }
+                        if (n == 0) {
+                            wouldBlock = true;
+                            break;
+                        }
+                    }
+
+                    if (!write(buffer)) {
+                        // Park the rest until the sink is writable again
+                        pending = acquireBuffer();
+                        buffer.flip();
+                        pending.put(buffer);
+                        buffer.clear();
+                        loop.queue.addOnFileDescriptorEventListener(sink, SINK_EVENTS, sinkListener);
+                        return 0;
+                    }
+                    if (sourceEnded) {
+                        finish();
+                        return 0;
+                    }
+                    if (wouldBlock) {
+                        return SOURCE_EVENTS;
+                    }
+                }
+            } catch (ErrnoException | IOException e) {
+                if (!(e instanceof ErrnoException) || ((ErrnoException) e).errno != OsConstants.EPIPE) {
+                    LOGGER.w("transfer failed: " + e);
+                }
+                finish();
+                return 0;
+            }
+        }
+
+        private int onSinkReady() {
+            try {
+                if (!write(pending)) {
+                    return SINK_EVENTS;
+                }
+            } catch (ErrnoException e) {
+                if (e.errno != OsConstants.EPIPE) {
+                    LOGGER.w("transfer failed: " + e);
+                }
+                finish();
+                return 0;
+            }
+
+            releaseBuffer(pending);
+            pending = null;
+            if (sourceEnded) {
+                finish();
+            } else {
+                loop.queue.addOnFileDescriptorEventListener(source, SOURCE_EVENTS, sourceListener);
+            }
+            return 0;
+        }
+
+        /**
+         * @return bytes read, 0 if the source would block, or -1 at the end
+         */
+        private int read(ByteBuffer buffer) throws ErrnoException, IOException {
+            if (sourceEnded) {
+                return -1;
+            }
+            int n = sourceStream != null ? readStream(buffer) : readDescriptor(buffer);
+            if (n < 0) {
+                sourceEnded = true;
+            }
+            return n;
+        }
+
+        private int readDescriptor(ByteBuffer buffer) throws ErrnoException {
+            try {
+                int n = Os.read(source, buffer);
+                return n > 0 ? n : -1;
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.EAGAIN) {
+                    return 0;
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Reads through {@link #sourceStream}, which is serialized with the process reaper. The
+         * descriptor is blocking, so the stream is only read when it has buffered data or the pipe
+         * is readable; at the end of the pipe the read returns whatever the reaper left in the
+         * stream, and then -1.
+         */
+        private int readStream(ByteBuffer buffer) throws ErrnoException, IOException {
+            int available = sourceStream.available();
+            if (available == 0 && !isReadable(source)) {
+                return 0;
+            }
+            byte[] bytes = loop.bytes;
+            int length = available > 0 ? Math.min(available, buffer.remaining()) : buffer.remaining();
+            int n = sourceStream.read(bytes, 0, length);
+            if (n > 0) {
+                buffer.put(bytes, 0, n);
+                return n;
+            }
+            return -1;
+        }
+
+        private static boolean isReadable(FileDescriptor fd) throws ErrnoException {
+            StructPollfd pollfd = new StructPollfd();
+            pollfd.fd = fd;
+            pollfd.events = (short) OsConstants.POLLIN;
+            return Os.poll(new StructPollfd[]{pollfd}, 0) > 0;
+        }
+
+        /**
+         * Writes the data in {@code buffer}, which is in fill mode and stays in it.
+         *
+         * @return whether everything was written
+         */
+        private boolean write(ByteBuffer buffer) throws ErrnoException {
+            buffer.flip();
+            try {
+                while (buffer.hasRemaining()) {
+                    Os.write(sink, buffer);
+                }
+            } catch (ErrnoException e) {
+                if (e.errno != OsConstants.EAGAIN) {
+                    throw e;
+                }
+            } finally {
+                buffer.compact();
+            }
+            return buffer.position() == 0;
+        }
+
+        private void finish() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            if (pending != null) {
+                releaseBuffer(pending);
+                pending = null;
+            }
+            // Closed after the listener returned and its registration is gone
+            loop.handler.post(() -> {
+                loop.queue.removeOnFileDescriptorEventListener(source);
+                loop.queue.removeOnFileDescriptorEventListener(sink);
+                closeQuietly(sourcePfd);
+                closeQuietly(sinkPfd);
+                closeQuietly(stream);
+            });
+        }
+
+        private static void closeQuietly(Closeable closeable) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -31,11 +31,13 @@ object ApkChangedObservers {
     fun stop(listener: ApkChangedListener) {
         val pathToRemove = mutableListOf<String>()
 
-        for ((path, observer) in observers) {
-            observer.removeListener(listener)
+        synchronized(observers) {
+            for ((path, observer) in observers) {
+                observer.removeListener(listener)
 
-            if (!observer.hasListeners()) {
-                pathToRemove.add(path)
+                if (!observer.hasListeners()) {
+                    pathToRemove.add(path)
+                }
             }
         }
 
@@ -47,7 +49,7 @@ object ApkChangedObservers {
 
 class ApkChangedObserver(private val path: String) : FileObserver(path, DELETE) {
 
-    private val listeners = mutableSetOf<ApkChangedListener>()
+    private val listeners = Collections.synchronizedSet(mutableSetOf<ApkChangedListener>())
 
     fun addListener(listener: ApkChangedListener): Boolean {
         return listeners.add(listener)
@@ -70,6 +72,8 @@ class ApkChangedObserver(private val path: String) : FileObserver(path, DELETE)
 
         if (path == "base.apk") {
             stopWatching()
+            // The directory is gone, a later start() for the same path needs a new observer
+            observers.remove(this.path, this)
             ArrayList(listeners).forEach { it.onApkChanged() }
         }
     }
@@ -6,47 +6,129 @@ import static android.app.ActivityManagerHidden.UID_OBSERVER_GONE;
 import static android.app.ActivityManagerHidden.UID_OBSERVER_IDLE;
 
 import android.app.ActivityManagerHidden;
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.RemoteException;
-import android.text.TextUtils;
 
 import androidx.annotation.RequiresApi;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import kotlin.collections.ArraysKt;
 import rikka.hidden.compat.ActivityManagerApis;
-import rikka.hidden.compat.PackageManagerApis;
 import rikka.hidden.compat.PermissionManagerApis;
 import rikka.hidden.compat.adapter.ProcessObserverAdapter;
 import rikka.hidden.compat.adapter.UidObserverAdapter;
+import rikka.shizuku.server.ktx.HandlerKt;
+import rikka.shizuku.server.util.IntHashSet;
 import rikka.shizuku.server.util.Logger;
+import rikka.shizuku.server.util.UserHandleCompat;
 
 public class BinderSender {
 
     private static final Logger LOGGER = new Logger("BinderSender");
 
-    private static final String PERMISSION_MANAGER = "moe.shizuku.manager.permission.MANAGER";
-    private static final String PERMISSION = "moe.shizuku.manager.permission.API_V23";
+    private static final String PERMISSION_MANAGER = PackageCache.PERMISSION_MANAGER;
+
+    private static final int MAX_WORKERS = 4;
+    private static final int MAX_ATTEMPTS = 4;
+    private static final long RETRY_DELAY = 250;
 
     private static ShizukuService sShizukuService;
 
+    /*
+     Observer callbacks come in on system_server binder threads and must return quickly, so they
+     only queue work here. Up to MAX_WORKERS threads drain the queue, resolving a uid to the
+     package to send to and then delivering. Deliveries are coalesced per (userId, package):
+     while one is pending, a new request only marks it to run once more after it finishes.
+     */
+    private static final Queue<Runnable> QUEUE = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger WORKERS = new AtomicInteger();
+    private static final ConcurrentHashMap<String, Delivery> DELIVERIES = new ConcurrentHashMap<>();
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "BinderSender-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static final class Delivery implements Runnable {
+
+        final String key;
+        final String packageName;
+        final int userId;
+
+        // Only touched by the thread currently running the delivery
+        int attempt;
+
+        // Guarded by the DELIVERIES bin lock, see deliver() and finish()
+        boolean again;
+
+        Delivery(String key, String packageName, int userId) {
+            this.key = key;
+            this.packageName = packageName;
+            this.userId = userId;
+        }
+
+        @Override
+        public void run() {
+            int result = ShizukuService.sendBinderToUserApp(sShizukuService, packageName, userId, attempt == 0);
+            if (result == ShizukuService.SEND_BINDER_PROVIDER_DEAD && attempt + 1 < MAX_ATTEMPTS) {
+                if (attempt == 0) {
+                    ShizukuService.forceStopBeforeRetry(packageName, userId);
+                }
+                long delay = RETRY_DELAY << attempt;
+                attempt++;
+                HandlerKt.getWorkerHandler().postDelayed(() -> enqueue(this), delay);
+                return;
+            }
+            finish();
+        }
+
+        private void finish() {
+            boolean[] runAgain = new boolean[1];
+            DELIVERIES.compute(key, (k, delivery) -> {
+                if (delivery != this) {
+                    return delivery;
+                }
+                if (!again) {
+                    return null;
+                }
+                again = false;
+                runAgain[0] = true;
+                return this;
+            });
+            if (runAgain[0]) {
+                attempt = 0;
+                enqueue(this);
+            }
+        }
+    }
+
     private static class ProcessObserver extends ProcessObserverAdapter {
 
-        private static final List<Integer> PID_LIST = new ArrayList<>();
+        private static final IntHashSet PID_LIST = new IntHashSet();
 
         @Override
         public void onForegroundActivitiesChanged(int pid, int uid, boolean foregroundActivities) throws RemoteException {
             LOGGER.d("onForegroundActivitiesChanged: pid=%d, uid=%d, foregroundActivities=%s", pid, uid, foregroundActivities ? "true" : "false");
 
             synchronized (PID_LIST) {
-                if (PID_LIST.contains(pid) || !foregroundActivities) {
+                if (!foregroundActivities || !PID_LIST.add(pid)) {
                     return;
                 }
-                PID_LIST.add(pid);
             }
 
             sendBinder(uid, pid);
@@ -57,10 +139,7 @@ public class BinderSender {
             LOGGER.d("onProcessDied: pid=%d, uid=%d", pid, uid);
 
             synchronized (PID_LIST) {
-                int index = PID_LIST.indexOf(pid);
-                if (index != -1) {
-                    PID_LIST.remove(index);
-                }
+                PID_LIST.remove(pid);
             }
         }
 
@@ -69,10 +148,9 @@ public class BinderSender {
             LOGGER.d("onProcessStateChanged: pid=%d, uid=%d, procState=%d", pid, uid, procState);
 
             synchronized (PID_LIST) {
-                if (PID_LIST.contains(pid)) {
+                if (!PID_LIST.add(pid)) {
                     return;
                 }
-                PID_LIST.add(pid);
             }
 
             sendBinder(uid, pid);
@@ -82,7 +160,7 @@ public class BinderSender {
     @RequiresApi(api = Build.VERSION_CODES.N)
     private static class UidObserver extends UidObserverAdapter {
 
-        private static final List<Integer> UID_LIST = new ArrayList<>();
+        private static final IntHashSet UID_LIST = new IntHashSet();
 
         @Override
         public void onUidActive(int uid) throws RemoteException {
@@ -114,13 +192,12 @@ public class BinderSender {
             uidGone(uid);
         }
 
-        private void uidStarts(int uid) throws RemoteException {
+        private void uidStarts(int uid) {
             synchronized (UID_LIST) {
-                if (UID_LIST.contains(uid)) {
+                if (!UID_LIST.add(uid)) {
                     LOGGER.v("Uid %d already starts", uid);
                     return;
                 }
-                UID_LIST.add(uid);
                 LOGGER.v("Uid %d starts", uid);
             }
 
@@ -129,29 +206,29 @@ public class BinderSender {
 
         private void uidGone(int uid) {
             synchronized (UID_LIST) {
-                int index = UID_LIST.indexOf(uid);
-                if (index != -1) {
-                    UID_LIST.remove(index);
+                if (UID_LIST.remove(uid)) {
                     LOGGER.v("Uid %d dead", uid);
                 }
             }
+
+            sShizukuService.onUidGone(uid);
         }
     }
 
-    private static void sendBinder(int uid, int pid) throws RemoteException {
-        List<String> packages = PackageManagerApis.getPackagesForUidNoThrow(uid);
+    private static void sendBinder(int uid, int pid) {
+        enqueue(() -> resolve(uid, pid));
+    }
+
+    private static void resolve(int uid, int pid) {
+        List<PackageCache.PackageRecord> packages = PackageCache.getInstance().getPackagesForUid(uid);
         if (packages.isEmpty())
             return;
 
-        LOGGER.d("sendBinder to uid %d: packages=%s", uid, TextUtils.join(", ", packages));
+        LOGGER.d("sendBinder to uid %d: %d packages", uid, packages.size());
 
-        int userId = uid / 100000;
-        for (String packageName : packages) {
-            PackageInfo pi = PackageManagerApis.getPackageInfoNoThrow(packageName, PackageManager.GET_PERMISSIONS, userId);
-            if (pi == null || pi.requestedPermissions == null)
-                continue;
-
-            if (ArraysKt.contains(pi.requestedPermissions, PERMISSION_MANAGER)) {
+        int userId = UserHandleCompat.getUserId(uid);
+        for (PackageCache.PackageRecord record : packages) {
+            if (record.requestsPermission(PackageCache.REQUESTED_PERMISSION_MANAGER)) {
                 boolean granted;
                 if (pid == -1)
                     granted = PermissionManagerApis.checkPermission(PERMISSION_MANAGER, uid) == PackageManager.PERMISSION_GRANTED;
@@ -159,16 +236,72 @@ public class BinderSender {
                     granted = ActivityManagerApis.checkPermission(PERMISSION_MANAGER, pid, uid) == PackageManager.PERMISSION_GRANTED;
 
                 if (granted) {
-                    ShizukuService.sendBinderToManger(sShizukuService, userId);
+                    deliver(ServerConstants.MANAGER_APPLICATION_ID, userId);
                     return;
                 }
-            } else if (ArraysKt.contains(pi.requestedPermissions, PERMISSION)) {
-                ShizukuService.sendBinderToUserApp(sShizukuService, packageName, userId);
+            } else if (record.requestsPermission(PackageCache.REQUESTED_PERMISSION_API)) {
+                deliver(record.packageName, userId);
                 return;
             }
         }
     }
 
+    /**
+     * Sends the binder to {@code packageName} in {@code userId} from a worker thread, unless a
+     * delivery to it is already pending.
+     */
+    static void deliver(String packageName, int userId) {
+        String key = userId + ":" + packageName;
+        boolean[] created = new boolean[1];
+        Delivery delivery = DELIVERIES.compute(key, (k, existing) -> {
+            if (existing != null) {
+                existing.again = true;
+                return existing;
+            }
+            created[0] = true;
+            return new Delivery(k, packageName, userId);
+        });
+        if (created[0]) {
+            enqueue(delivery);
+        } else {
+            LOGGER.v("delivery to %s is pending, coalesced", key);
+        }
+    }
+
+    private static void enqueue(Runnable task) {
+        QUEUE.offer(task);
+        if (tryAddWorker()) {
+            EXECUTOR.execute(BinderSender::runWorker);
+        }
+    }
+
+    private static boolean tryAddWorker() {
+        while (true) {
+            int count = WORKERS.get();
+            if (count >= MAX_WORKERS) {
+                return false;
+            }
+            if (WORKERS.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private static void runWorker() {
+        do {
+            Runnable task;
+            while ((task = QUEUE.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Throwable tr) {
+                    LOGGER.e(tr, "binder delivery");
+                }
+            }
+            WORKERS.decrementAndGet();
+            // A task offered after the last poll may have found every worker busy
+        } while (!QUEUE.isEmpty() && tryAddWorker());
+    }
+
     public static void register(ShizukuService shizukuService) {
         sShizukuService = shizukuService;
 
@@ -0,0 +1,497 @@
+package rikka.shizuku.server;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.AtomicFile;
+
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import rikka.shizuku.server.util.CopyOnWriteLongMap;
+import rikka.shizuku.server.util.Logger;
+
+/**
+ * Persistent uid-indexed store of {@link ShizukuConfig.PackageEntry}.
+ * <p>
+ * Entries live in a {@link CopyOnWriteLongMap}, so lookups are lock-free and constant time.
+ * On disk the store is a binary snapshot, written through {@link AtomicFile}, plus an
+ * append-only journal. Every change is appended to the journal as a record holding the whole
+ * new state of one uid, a sequence number and a CRC32. Records are written and fsynced by a
+ * dedicated thread, and the records of a burst of changes share one fsync. Once the journal
+ * grows past {@link #COMPACT_RECORDS} records or {@link #COMPACT_BYTES} bytes, the same thread
+ * writes a new snapshot and starts a new journal.
+ * <p>
+ * Loading reads the snapshot and replays the journal records newer than it. A torn or corrupt
+ * record at the end, left by a crash in the middle of a write, is cut off. A crash between
+ * writing a snapshot and resetting the journal is harmless, because the old records are not
+ * newer than the snapshot and are skipped.
+ */
+class ConfigStore {
+
+    private static final Logger LOGGER = new Logger("ConfigStore");
+
+    private static final int SNAPSHOT_MAGIC = 0x535a4353; // SZCS
+    private static final int JOURNAL_MAGIC = 0x535a434a; // SZCJ
+    private static final int FORMAT_VERSION = 1;
+    private static final int JOURNAL_HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+
+    /**
+     * How long a write waits for more changes to share its fsync.
+     */
+    private static final long FLUSH_DELAY = 2;
+
+    private static final int COMPACT_RECORDS = 512;
+    private static final long COMPACT_BYTES = 64 * 1024;
+
+    private final AtomicFile snapshotFile;
+    private final File journalFile;
+
+    private final CopyOnWriteLongMap<ShizukuConfig.PackageEntry> entries = new CopyOnWriteLongMap<>();
+
+    private final Handler handler;
+
+    // Guarded by this
+    private long seq;
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private int pendingRecords;
+    private boolean flushScheduled;
+
+    // Only touched on the handler thread, after load()
+    private FileOutputStream journal;
+    private long journalBytes;
+    private int journalRecords;
+
+    private final Runnable flushRunner = this::flush;
+
+    ConfigStore(File snapshotFile, File journalFile) {
+        this.snapshotFile = new AtomicFile(snapshotFile);
+        this.journalFile = journalFile;
+
+        HandlerThread thread = new HandlerThread("ConfigStore");
+        thread.start();
+        this.handler = new Handler(thread.getLooper());
+    }
+
+    @Nullable
+    ShizukuConfig.PackageEntry get(int uid) {
+        return entries.get(uid);
+    }
+
+    List<ShizukuConfig.PackageEntry> values() {
+        return entries.values();
+    }
+
+    void put(ShizukuConfig.PackageEntry entry) {
+        synchronized (this) {
+            entries.put(entry.uid, entry);
+            appendLocked(OP_PUT, entry.uid, entry);
+        }
+    }
+
+    void remove(int uid) {
+        synchronized (this) {
+            if (entries.remove(uid) != null) {
+                appendLocked(OP_REMOVE, uid, null);
+            }
+        }
+    }
+
+    /**
+     * Loads the snapshot and the journal. Must be called once, before anything else.
+     *
+     * @return {@code false} if there was nothing on disk yet
+     */
+    boolean load() {
+        boolean exists = snapshotFile.exists() || journalFile.exists();
+
+        long snapshotSeq = 0;
+        try {
+            snapshotSeq = readSnapshot();
+        } catch (IOException e) {
+            LOGGER.e(e, "can't read %s, only the journal is used", snapshotFile.getBaseFile());
+            entries.clear();
+        }
+
+        long lastSeq = replayJournal(snapshotSeq);
+        synchronized (this) {
+            seq = lastSeq;
+        }
+        LOGGER.i("loaded %d config entries (snapshot seq %d, journal seq %d)", entries.size(), snapshotSeq, lastSeq);
+
+        if (needsCompaction()) {
+            handler.post(this::compact);
+        }
+        return exists;
+    }
+
+    /**
+     * Writes everything still pending and then a new snapshot, and waits for it.
+     *
+     * @return whether the snapshot was written in time
+     */
+    boolean compactAndWait(long timeoutMillis) {
+        boolean[] result = new boolean[1];
+        CountDownLatch latch = new CountDownLatch(1);
+        handler.post(() -> {
+            flush();
+            result[0] = compact();
+            latch.countDown();
+        });
+        try {
+            return latch.await(timeoutMillis, TimeUnit.MILLISECONDS) && result[0];
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Writes everything still pending to the journal and waits for it.
+     */
+    void flushAndWait(long timeoutMillis) {
+        CountDownLatch latch = new CountDownLatch(1);
+        handler.post(() -> {
+            flush();
+            latch.countDown();
+        });
+        try {
+            latch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void appendLocked(byte op, int uid, @Nullable ShizukuConfig.PackageEntry entry) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+        try {
+            DataOutputStream out = new DataOutputStream(payload);
+            out.writeLong(++seq);
+            out.writeByte(op);
+            out.writeInt(uid);
+            if (entry != null) {
+                writeEntryBody(out, entry);
+            }
+
+            byte[] bytes = payload.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+
+            DataOutputStream record = new DataOutputStream(pending);
+            record.writeInt(bytes.length);
+            record.write(bytes);
+            record.writeInt((int) crc.getValue());
+        } catch (IOException e) {
+            // Not possible with in-memory streams
+            throw new IllegalStateException(e);
+        }
+        pendingRecords++;
+
+        if (!flushScheduled) {
+            flushScheduled = true;
+            handler.postDelayed(flushRunner, FLUSH_DELAY);
+        }
+    }
+
+    private void flush() {
+        byte[] data;
+        int records;
+        synchronized (this) {
+            flushScheduled = false;
+            handler.removeCallbacks(flushRunner);
+            if (pendingRecords == 0) {
+                return;
+            }
+            data = pending.toByteArray();
+            records = pendingRecords;
+            pending.reset();
+            pendingRecords = 0;
+        }
+
+        try {
+            if (journal == null) {
+                openJournal();
+            }
+            journal.write(data);
+            journal.getFD().sync();
+            journalBytes += data.length;
+            journalRecords += records;
+            LOGGER.v("%d config records written", records);
+        } catch (IOException e) {
+            // The records are still in memory, a snapshot saves them as well
+            LOGGER.w(e, "can't write %s", journalFile);
+            closeJournal();
+            compact();
+            return;
+        }
+
+        if (needsCompaction()) {
+            compact();
+        }
+    }
+
+    private boolean needsCompaction() {
+        return journalRecords >= COMPACT_RECORDS || journalBytes >= COMPACT_BYTES;
+    }
+
+    private boolean compact() {
+        List<ShizukuConfig.PackageEntry> state;
+        long snapshotSeq;
+        synchronized (this) {
+            state = entries.values();
+            snapshotSeq = seq;
+        }
+
+        if (!writeSnapshot(state, snapshotSeq)) {
+            return false;
+        }
+
+        // Records still pending have a higher seq and go to the new journal
+        closeJournal();
+        try {
+            resetJournal();
+        } catch (IOException e) {
+            LOGGER.w(e, "can't reset %s", journalFile);
+            closeJournal();
+        }
+        LOGGER.i("config compacted: %d entries, seq %d", state.size(), snapshotSeq);
+        return true;
+    }
+
+    private void openJournal() throws IOException {
+        if (journalFile.length() < JOURNAL_HEADER_SIZE) {
+            resetJournal();
+            return;
+        }
+        journal = new FileOutputStream(journalFile, true);
+    }
+
+    private void resetJournal() throws IOException {
+        journal = new FileOutputStream(journalFile, false);
+        DataOutputStream out = new DataOutputStream(journal);
+        out.writeInt(JOURNAL_MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        journal.getFD().sync();
+        journalBytes = 0;
+        journalRecords = 0;
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                LOGGER.w("failed to close: " + e);
+            }
+            journal = null;
+        }
+    }
+
+    /**
+     * @return the seq of the snapshot, or 0 if there is none
+     */
+    private long readSnapshot() throws IOException {
+        FileInputStream stream;
+        try {
+            stream = snapshotFile.openRead();
+        } catch (FileNotFoundException e) {
+            return 0;
+        }
+
+        try {
+            CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(stream), new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("bad magic");
+            }
+            int version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("unsupported version " + version);
+            }
+            long snapshotSeq = in.readLong();
+            int count = in.readInt();
+            if (count < 0) {
+                throw new IOException("bad entry count " + count);
+            }
+            ShizukuConfig.PackageEntry[] read = new ShizukuConfig.PackageEntry[count];
+            for (int i = 0; i < count; i++) {
+                int uid = in.readInt();
+                read[i] = readEntryBody(in, uid);
+            }
+            int expected = (int) checked.getChecksum().getValue();
+            if (in.readInt() != expected) {
+                throw new IOException("checksum mismatch");
+            }
+
+            for (ShizukuConfig.PackageEntry entry : read) {
+                entries.put(entry.uid, entry);
+            }
+            return snapshotSeq;
+        } finally {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                LOGGER.w("failed to close: " + e);
+            }
+        }
+    }
+
+    private boolean writeSnapshot(List<ShizukuConfig.PackageEntry> state, long snapshotSeq) {
+        FileOutputStream stream;
+        try {
+            stream = snapshotFile.startWrite();
+        } catch (IOException e) {
+            LOGGER.w("failed to write snapshot: " + e);
+            return false;
+        }
+
+        try {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(stream), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(snapshotSeq);
+            out.writeInt(state.size());
+            for (ShizukuConfig.PackageEntry entry : state) {
+                out.writeInt(entry.uid);
+                writeEntryBody(out, entry);
+            }
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+
+            snapshotFile.finishWrite(stream);
+            return true;
+        } catch (Throwable tr) {
+            LOGGER.w(tr, "can't save %s, restoring backup.", snapshotFile.getBaseFile());
+            snapshotFile.failWrite(stream);
+            return false;
+        }
+    }
+
+    /**
+     * @return the seq of the last record applied, or {@code snapshotSeq}
+     */
+    private long replayJournal(long snapshotSeq) {
+        long fileLength = journalFile.length();
+        if (fileLength == 0) {
+            return snapshotSeq;
+        }
+
+        long lastSeq = snapshotSeq;
+        long valid = 0;
+        int records = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            if (in.readInt() != JOURNAL_MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException("bad journal header");
+            }
+            valid = JOURNAL_HEADER_SIZE;
+
+            while (valid < fileLength) {
+                int length = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_SIZE) {
+                    throw new IOException("bad record length " + length);
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                int stored = in.readInt();
+
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != stored) {
+                    throw new IOException("checksum mismatch");
+                }
+
+                lastSeq = Math.max(lastSeq, applyRecord(payload, snapshotSeq));
+                valid += 8 + length;
+                records++;
+            }
+        } catch (EOFException e) {
+            LOGGER.w("journal %s ends with a torn record", journalFile);
+        } catch (IOException e) {
+            LOGGER.w("journal %s is corrupt after %d bytes: %s", journalFile, valid, e);
+        }
+
+        if (valid < fileLength) {
+            // Drop the broken tail, so new records are not appended behind it
+            try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+                file.setLength(valid);
+            } catch (IOException e) {
+                LOGGER.w("failed to truncate %s: %s", journalFile, e);
+            }
+        }
+
+        journalBytes = Math.max(0, valid - JOURNAL_HEADER_SIZE);
+        journalRecords = records;
+        return lastSeq;
+    }
+
+    /**
+     * @return the seq of the record
+     */
+    private long applyRecord(byte[] payload, long snapshotSeq) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        long recordSeq = in.readLong();
+        byte op = in.readByte();
+        int uid = in.readInt();
+        if (recordSeq <= snapshotSeq) {
+            return recordSeq;
+        }
+        switch (op) {
+            case OP_PUT:
+                entries.put(uid, readEntryBody(in, uid));
+                break;
+            case OP_REMOVE:
+                entries.remove(uid);
+                break;
+            default:
+                throw new IOException("unknown op " + op);
+        }
+        return recordSeq;
+    }
+
+    private static void writeEntryBody(DataOutputStream out, ShizukuConfig.PackageEntry entry) throws IOException {
+        out.writeInt(entry.flags);
+        out.writeInt(entry.packages.size());
+        for (String packageName : entry.packages) {
+            out.writeUTF(packageName);
+        }
+    }
+
+    private static ShizukuConfig.PackageEntry readEntryBody(DataInputStream in, int uid) throws IOException {
+        int flags = in.readInt();
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("bad package count " + count);
+        }
+        Set<String> packages = new LinkedHashSet<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            packages.add(in.readUTF());
+        }
+        return new ShizukuConfig.PackageEntry(uid, flags, Collections.unmodifiableSet(packages));
+    }
+}
@@ -0,0 +1,372 @@
+package rikka.shizuku.server;
+
+import static rikka.shizuku.server.ServerConstants.PERMISSION;
+
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.util.SparseArray;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import rikka.hidden.compat.PackageManagerApis;
+import rikka.hidden.compat.UserManagerApis;
+import rikka.shizuku.server.util.Logger;
+import rikka.shizuku.server.util.UserHandleCompat;
+
+/**
+ * In-memory copy of the package data the server keeps asking PackageManager for: which packages
+ * a uid has, which of our permissions a package requests, and whether it declares
+ * {@code V3_SUPPORT}. Records are indexed by (userId, packageName) and by uid.
+ * <p>
+ * A user is loaded with one {@code getInstalledPackages} call the first time it is needed, so the
+ * flood of process-start callbacks after the server starts is answered from memory. After that
+ * records are refreshed one by one: from {@code dispatchPackageChanged}, and through
+ * {@link ApkChangedObservers}, which tells us when the code directory of an installed package is
+ * deleted because it was updated or uninstalled. Anything not found is looked up in
+ * PackageManager and added.
+ * <p>
+ * Nothing tells us about packages installed later, so {@link #getPackages} is only complete as
+ * of the load; lists shown to the user should come from PackageManager.
+ */
+public class PackageCache {
+
+    private static final Logger LOGGER = new Logger("PackageCache");
+
+    public static final int REQUESTED_PERMISSION_API = 1;
+    public static final int REQUESTED_PERMISSION_MANAGER = 1 << 1;
+
+    public static final String PERMISSION_MANAGER = "moe.shizuku.manager.permission.MANAGER";
+
+    private static final String META_DATA_V3_SUPPORT = "moe.shizuku.client.V3_SUPPORT";
+
+    private static final String DATA_APP_DIR = "/data/app/";
+
+    private static final int PACKAGE_INFO_FLAGS = PackageManager.GET_META_DATA | PackageManager.GET_PERMISSIONS;
+
+    public static final class PackageRecord {
+
+        public final String packageName;
+        public final int userId;
+        public final int uid;
+
+        /**
+         * Bitset of {@code REQUESTED_PERMISSION_*}.
+         */
+        public final int requestedPermissions;
+
+        public final boolean v3Support;
+
+        /**
+         * Full {@link PackageInfo} (with meta-data and permissions), kept only for packages that
+         * request one of our permissions.
+         */
+        @Nullable
+        public final PackageInfo packageInfo;
+
+        @Nullable
+        private final String sourceDir;
+
+        private ApkChangedListener apkListener;
+
+        private PackageRecord(String packageName, int userId, int uid, int requestedPermissions, boolean v3Support,
+                              @Nullable PackageInfo packageInfo, @Nullable String sourceDir) {
+            this.packageName = packageName;
+            this.userId = userId;
+            this.uid = uid;
+            this.requestedPermissions = requestedPermissions;
+            this.v3Support = v3Support;
+            this.packageInfo = packageInfo;
+            this.sourceDir = sourceDir;
+        }
+
+        public boolean requestsPermission(int permission) {
+            return (requestedPermissions & permission) != 0;
+        }
+    }
+
+    private static final PackageCache INSTANCE = new PackageCache();
+
+    public static PackageCache getInstance() {
+        return INSTANCE;
+    }
+
+    private final SparseArray<Map<String, PackageRecord>> packagesByUser = new SparseArray<>();
+    private final SparseArray<PackageRecord[]> packagesByUid = new SparseArray<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private PackageCache() {
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Loads all users now instead of on first use.
+     */
+    public void loadAll() {
+        for (int userId : UserManagerApis.getUserIdsNoThrow()) {
+            loadUser(userId);
+        }
+    }
+
+    /**
+     * @return the packages of {@code userId} as of the load, plus those looked up since
+     */
+    @NonNull
+    public List<PackageRecord> getPackages(int userId) {
+        Map<String, PackageRecord> packages = loadUser(userId);
+        synchronized (this) {
+            return new ArrayList<>(packages.values());
+        }
+    }
+
+    @NonNull
+    public List<PackageRecord> getPackagesForUid(int uid) {
+        loadUser(UserHandleCompat.getUserId(uid));
+
+        PackageRecord[] records;
+        synchronized (this) {
+            records = packagesByUid.get(uid);
+        }
+        if (records != null) {
+            hits.incrementAndGet();
+            List<PackageRecord> res = new ArrayList<>(records.length);
+            Collections.addAll(res, records);
+            return res;
+        }
+
+        misses.incrementAndGet();
+        List<PackageRecord> res = new ArrayList<>();
+        for (String packageName : PackageManagerApis.getPackagesForUidNoThrow(uid)) {
+            PackageRecord record = refresh(packageName, UserHandleCompat.getUserId(uid));
+            if (record != null) {
+                res.add(record);
+            }
+        }
+        return res;
+    }
+
+    @NonNull
+    public List<String> getPackageNamesForUid(int uid) {
+        List<PackageRecord> records = getPackagesForUid(uid);
+        List<String> res = new ArrayList<>(records.size());
+        for (PackageRecord record : records) {
+            res.add(record.packageName);
+        }
+        return res;
+    }
+
+    @Nullable
+    public PackageRecord getPackage(String packageName, int userId) {
+        Map<String, PackageRecord> packages = loadUser(userId);
+        PackageRecord record;
+        synchronized (this) {
+            record = packages.get(packageName);
+        }
+        if (record != null) {
+            hits.incrementAndGet();
+            return record;
+        }
+
+        misses.incrementAndGet();
+        return refresh(packageName, userId);
+    }
+
+    /**
+     * Whether {@code packageName} belongs to {@code uid}. A negative answer is always confirmed
+     * with PackageManager, so a package installed a moment ago is not rejected.
+     */
+    public boolean isPackageOfUid(String packageName, int uid) {
+        int userId = UserHandleCompat.getUserId(uid);
+        PackageRecord record = getPackage(packageName, userId);
+        if (record != null && record.uid == uid) {
+            return true;
+        }
+        record = refresh(packageName, userId);
+        return record != null && record.uid == uid;
+    }
+
+    /**
+     * Reads the package from PackageManager again and replaces (or removes) its record.
+     */
+    @Nullable
+    public PackageRecord refresh(String packageName, int userId) {
+        PackageInfo pi = PackageManagerApis.getPackageInfoNoThrow(packageName, PACKAGE_INFO_FLAGS, userId);
+        PackageRecord record = pi != null ? createRecord(pi, userId) : null;
+        synchronized (this) {
+            Map<String, PackageRecord> packages = packagesByUser.get(userId);
+            if (packages == null) {
+                // The user is loaded later and will pick the package up by itself
+                return record;
+            }
+            if (record != null) {
+                putLocked(packages, record);
+            } else {
+                removeLocked(packages, packageName);
+            }
+        }
+        return record;
+    }
+
+    public void remove(String packageName, int userId) {
+        synchronized (this) {
+            Map<String, PackageRecord> packages = packagesByUser.get(userId);
+            if (packages != null) {
+                removeLocked(packages, packageName);
+            }
+        }
+    }
+
+    /**
+     * The bulk IPC is made without the lock, so lookups of loaded users are not held up by it.
+     * If two threads load the same user, the first one to finish wins.
+     */
+    private Map<String, PackageRecord> loadUser(int userId) {
+        synchronized (this) {
+            Map<String, PackageRecord> packages = packagesByUser.get(userId);
+            if (packages != null) {
+                return packages;
+            }
+        }
+
+        List<PackageRecord> loaded = new ArrayList<>();
+        for (PackageInfo pi : PackageManagerApis.getInstalledPackagesNoThrow(PACKAGE_INFO_FLAGS, userId)) {
+            PackageRecord record = createRecord(pi, userId);
+            if (record != null) {
+                loaded.add(record);
+            }
+        }
+
+        synchronized (this) {
+            Map<String, PackageRecord> packages = packagesByUser.get(userId);
+            if (packages != null) {
+                return packages;
+            }
+
+            packages = new HashMap<>();
+            for (PackageRecord record : loaded) {
+                putLocked(packages, record);
+            }
+            packagesByUser.put(userId, packages);
+            LOGGER.i("loaded %d packages for user %d", packages.size(), userId);
+            return packages;
+        }
+    }
+
+    @Nullable
+    private static PackageRecord createRecord(PackageInfo pi, int userId) {
+        ApplicationInfo ai = pi.applicationInfo;
+        if (pi.packageName == null || ai == null) {
+            return null;
+        }
+
+        int requestedPermissions = 0;
+        if (pi.requestedPermissions != null) {
+            for (String permission : pi.requestedPermissions) {
+                if (PERMISSION.equals(permission)) {
+                    requestedPermissions |= REQUESTED_PERMISSION_API;
+                } else if (PERMISSION_MANAGER.equals(permission)) {
+                    requestedPermissions |= REQUESTED_PERMISSION_MANAGER;
+                }
+            }
+        }
+        boolean v3Support = ai.metaData != null && ai.metaData.getBoolean(META_DATA_V3_SUPPORT, false);
+
+        return new PackageRecord(pi.packageName, userId, ai.uid, requestedPermissions, v3Support,
+                requestedPermissions != 0 ? pi : null, ai.sourceDir);
+    }
+
+    private void putLocked(Map<String, PackageRecord> packages, PackageRecord record) {
+        PackageRecord old = packages.put(record.packageName, record);
+        if (old != null) {
+            removeFromUidLocked(old);
+            unwatchLocked(old);
+        }
+
+        PackageRecord[] records = packagesByUid.get(record.uid);
+        if (records == null) {
+            packagesByUid.put(record.uid, new PackageRecord[]{record});
+        } else {
+            PackageRecord[] next = new PackageRecord[records.length + 1];
+            System.arraycopy(records, 0, next, 0, records.length);
+            next[records.length] = record;
+            packagesByUid.put(record.uid, next);
+        }
+
+        watchLocked(record);
+    }
+
+    private void removeLocked(Map<String, PackageRecord> packages, String packageName) {
+        PackageRecord old = packages.remove(packageName);
+        if (old != null) {
+            removeFromUidLocked(old);
+            unwatchLocked(old);
+        }
+    }
+
+    private void removeFromUidLocked(PackageRecord record) {
+        PackageRecord[] records = packagesByUid.get(record.uid);
+        if (records == null) {
+            return;
+        }
+        int index = -1;
+        for (int i = 0; i < records.length; i++) {
+            if (records[i] == record) {
+                index = i;
+                break;
+            }
+        }
+        if (index == -1) {
+            return;
+        }
+        if (records.length == 1) {
+            packagesByUid.remove(record.uid);
+            return;
+        }
+        PackageRecord[] next = new PackageRecord[records.length - 1];
+        System.arraycopy(records, 0, next, 0, index);
+        System.arraycopy(records, index + 1, next, index, records.length - index - 1);
+        packagesByUid.put(record.uid, next);
+    }
+
+    private void watchLocked(PackageRecord record) {
+        // Only /data/app changes at runtime; updates of system apps are installed there as well
+        if (record.sourceDir == null || !record.sourceDir.startsWith(DATA_APP_DIR)) {
+            return;
+        }
+        ApkChangedListener listener = new ApkChangedListener() {
+
+            @Override
+            public void onApkChanged() {
+                LOGGER.d("apk of %s in user %d changed", record.packageName, record.userId);
+                ApkChangedObservers.stop(this);
+                refresh(record.packageName, record.userId);
+            }
+        };
+        record.apkListener = listener;
+        ApkChangedObservers.start(record.sourceDir, listener);
+    }
+
+    private void unwatchLocked(PackageRecord record) {
+        if (record.apkListener != null) {
+            ApkChangedObservers.stop(record.apkListener);
+            record.apkListener = null;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package rikka.shizuku.server;
+
+import android.os.SystemClock;
+
+import rikka.shizuku.server.util.CopyOnWriteLongMap;
+
+/**
+ * Per-uid cache of the permission decisions {@link ShizukuService} otherwise asks system_server
+ * for on every call: the allow/deny flags (from the config or from the runtime permission) and
+ * the result of {@code ActivityManager#checkPermission} for callers that are not attached.
+ * <p>
+ * Every invalidation bumps a generation number. A lookup remembers the generation it started
+ * at and {@link #put} drops its result if anything was invalidated in the meantime, so a slow
+ * query that raced with {@code updateFlagsForUid} cannot put the old answer back.
+ * <p>
+ * Changes made through the manager, package changes and uid removal invalidate entries
+ * explicitly. A runtime permission can also be changed from system settings without us
+ * hearing about it, so decisions that came from system_server expire after {@link #MAX_AGE}.
+ */
+class PermissionDecisionCache {
+
+    static final int UNKNOWN = -1;
+
+    private static final long MAX_AGE = 60 * 1000;
+
+    static final class Entry {
+
+        /**
+         * Config flags of the uid, {@link ConfigManager#FLAG_ALLOWED} or 0 when derived from the
+         * runtime permission, or {@link #UNKNOWN}.
+         */
+        final int flags;
+
+        /**
+         * Whether {@link #flags} came from the config rather than from the runtime permission.
+         */
+        final boolean fromConfig;
+
+        /**
+         * {@code PackageManager.PERMISSION_*} result for non-attached callers, or {@link #UNKNOWN}.
+         */
+        final int callingPermission;
+
+        final long flagsTime;
+        final long callingPermissionTime;
+
+        Entry(int flags, boolean fromConfig, long flagsTime, int callingPermission, long callingPermissionTime) {
+            this.flags = flags;
+            this.fromConfig = fromConfig;
+            this.flagsTime = flagsTime;
+            this.callingPermission = callingPermission;
+            this.callingPermissionTime = callingPermissionTime;
+        }
+
+        int getFlags(long now) {
+            if (flags == UNKNOWN || (!fromConfig && now - flagsTime > MAX_AGE)) {
+                return UNKNOWN;
+            }
+            return flags;
+        }
+
+        int getCallingPermission(long now) {
+            if (callingPermission == UNKNOWN || now - callingPermissionTime > MAX_AGE) {
+                return UNKNOWN;
+            }
+            return callingPermission;
+        }
+    }
+
+    private final CopyOnWriteLongMap<Entry> entries = new CopyOnWriteLongMap<>();
+
+    private volatile long generation;
+
+    long generation() {
+        return generation;
+    }
+
+    /**
+     * @param allowRuntimePermission whether a decision taken from the runtime permission (when
+     *                               there is no config entry) may be returned
+     * @return cached flags of {@code uid}, or {@link #UNKNOWN}
+     */
+    int getFlags(int uid, boolean allowRuntimePermission) {
+        Entry entry = entries.get(uid);
+        if (entry == null || (!entry.fromConfig && !allowRuntimePermission)) {
+            return UNKNOWN;
+        }
+        return entry.getFlags(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * @return cached {@code checkPermission} result of {@code uid}, or {@link #UNKNOWN}
+     */
+    int getCallingPermission(int uid) {
+        Entry entry = entries.get(uid);
+        return entry != null ? entry.getCallingPermission(SystemClock.elapsedRealtime()) : UNKNOWN;
+    }
+
+    void putFlags(int uid, int flags, boolean fromConfig, long generation) {
+        put(uid, generation, flags, fromConfig, UNKNOWN);
+    }
+
+    void putCallingPermission(int uid, int result, long generation) {
+        put(uid, generation, UNKNOWN, false, result);
+    }
+
+    private synchronized void put(int uid, long generation, int flags, boolean fromConfig, int callingPermission) {
+        if (generation != this.generation) {
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        Entry old = entries.get(uid);
+        Entry entry;
+        if (flags != UNKNOWN) {
+            entry = old != null
+                    ? new Entry(flags, fromConfig, now, old.callingPermission, old.callingPermissionTime)
+                    : new Entry(flags, fromConfig, now, UNKNOWN, 0);
+        } else {
+            entry = old != null
+                    ? new Entry(old.flags, old.fromConfig, old.flagsTime, callingPermission, now)
+                    : new Entry(UNKNOWN, false, 0, callingPermission, now);
+        }
+        entries.put(uid, entry);
+    }
+
+    synchronized void invalidate(int uid) {
+        generation++;
+        entries.remove(uid);
+    }
+
+    synchronized void invalidateAll() {
+        generation++;
+        entries.clear();
+    }
+}
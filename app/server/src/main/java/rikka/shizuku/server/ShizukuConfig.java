@@ -6,6 +6,7 @@ import com.google.gson.annotations.SerializedName;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 public class ShizukuConfig {
 
@@ -23,15 +24,18 @@ public class ShizukuConfig {
         public final int uid;
 
         @SerializedName("flags")
-        public int flags;
+        public final int flags;
 
+        /**
+         * Never modified once the entry is in {@link ConfigStore}, a change replaces the entry.
+         */
         @SerializedName("packages")
-        public List<String> packages;
+        public final Set<String> packages;
 
-        public PackageEntry(int uid, int flags) {
+        public PackageEntry(int uid, int flags, Set<String> packages) {
             this.uid = uid;
             this.flags = flags;
-            this.packages = new ArrayList<>();
+            this.packages = packages;
         }
 
         @Override
@@ -2,9 +2,7 @@ package rikka.shizuku.server;
 
 import static rikka.shizuku.server.ServerConstants.PERMISSION;
 
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
-import android.os.Build;
 import android.util.AtomicFile;
 
 import androidx.annotation.Nullable;
@@ -15,40 +13,43 @@ import com.google.gson.GsonBuilder;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 
-import kotlin.collections.ArraysKt;
-import rikka.hidden.compat.PackageManagerApis;
 import rikka.hidden.compat.PermissionManagerApis;
 import rikka.hidden.compat.UserManagerApis;
-import rikka.shizuku.server.ktx.HandlerKt;
 
 public class ShizukuConfigManager extends ConfigManager {
 
     private static final Gson GSON_IN = new GsonBuilder()
             .create();
-    private static final Gson GSON_OUT = new GsonBuilder()
-            .setVersion(ShizukuConfig.LATEST_VERSION)
-            .create();
 
-    private static final long WRITE_DELAY = 10 * 1000;
+    private static final long MIGRATE_TIMEOUT = 5 * 1000;
+    private static final long FLUSH_TIMEOUT = 1000;
+
+    private static final File DIR = new File("/data/local/tmp/shizuku");
 
-    private static final File FILE = new File("/data/local/tmp/shizuku/shizuku.json");
-    private static final AtomicFile ATOMIC_FILE = new AtomicFile(FILE);
+    /**
+     * The JSON config used before {@link ConfigStore}, renamed to {@link #LEGACY_FILE_MIGRATED}
+     * once it has been migrated.
+     */
+    private static final File LEGACY_FILE = new File(DIR, "shizuku.json");
+    private static final File LEGACY_FILE_MIGRATED = new File(DIR, "shizuku.json.migrated");
 
-    public static ShizukuConfig load() {
+    @Nullable
+    private static ShizukuConfig loadLegacy() {
+        AtomicFile atomicFile = new AtomicFile(LEGACY_FILE);
         FileInputStream stream;
         try {
-            stream = ATOMIC_FILE.openRead();
+            stream = atomicFile.openRead();
         } catch (FileNotFoundException e) {
-            LOGGER.i("no existing config file " + ATOMIC_FILE.getBaseFile() + "; starting empty");
-            return new ShizukuConfig();
+            return null;
         }
 
         ShizukuConfig config = null;
@@ -66,66 +67,24 @@ public class ShizukuConfigManager extends ConfigManager {
         return config;
     }
 
-    public static void write(ShizukuConfig config) {
-        synchronized (ATOMIC_FILE) {
-            FileOutputStream stream;
-            try {
-                stream = ATOMIC_FILE.startWrite();
-            } catch (IOException e) {
-                LOGGER.w("failed to write state: " + e);
-                return;
-            }
-
-            try {
-                String json = GSON_OUT.toJson(config);
-                stream.write(json.getBytes());
-
-                ATOMIC_FILE.finishWrite(stream);
-                LOGGER.v("config saved");
-            } catch (Throwable tr) {
-                LOGGER.w(tr, "can't save %s, restoring backup.", ATOMIC_FILE.getBaseFile());
-                ATOMIC_FILE.failWrite(stream);
-            }
-        }
-    }
-
-    private final Runnable mWriteRunner = new Runnable() {
-
-        @Override
-        public void run() {
-            write(config);
-        }
-    };
-
-    private final ShizukuConfig config;
+    private final ConfigStore store;
 
     public ShizukuConfigManager() {
-        this.config = load();
+        //noinspection ResultOfMethodCallIgnored
+        DIR.mkdirs();
+        store = new ConfigStore(new File(DIR, "config.snapshot"), new File(DIR, "config.journal"));
 
-        boolean changed = false;
+        PackageCache packageCache = PackageCache.getInstance();
 
-        if (config.packages == null) {
-            config.packages = new ArrayList<>();
-            changed = true;
+        if (!store.load()) {
+            migrateLegacy(packageCache);
         }
 
-        if (config.version < 2) {
-            for (ShizukuConfig.PackageEntry entry : new ArrayList<>(config.packages)) {
-                entry.packages = PackageManagerApis.getPackagesForUidNoThrow(entry.uid);
-            }
-            changed = true;
-        }
-
-        for (ShizukuConfig.PackageEntry entry : new ArrayList<>(config.packages)) {
-            if (entry.packages == null) {
-                entry.packages = new ArrayList<>();
-            }
-
-            List<String> packages = PackageManagerApis.getPackagesForUidNoThrow(entry.uid);
+        for (ShizukuConfig.PackageEntry entry : store.values()) {
+            List<String> packages = packageCache.getPackageNamesForUid(entry.uid);
             if (packages.isEmpty()) {
                 LOGGER.i("remove config for uid %d since it has gone", entry.uid);
-                config.packages.remove(entry);
-                changed = true;
+                store.remove(entry.uid);
                 continue;
             }
 
@@ -138,32 +97,19 @@ public class ShizukuConfigManager extends ConfigManager {
                 }
             }
 
-            final int rawSize = entry.packages.size();
-            Set<String> s = new LinkedHashSet<>(entry.packages);
-            entry.packages.clear();
-            entry.packages.addAll(s);
-            final int shrunkSize = entry.packages.size();
-            if (shrunkSize < rawSize) {
-                LOGGER.w("entry.packages has duplicate! Shrunk. (%d -> %d)", rawSize, shrunkSize);
-            }
-
             if (packagesChanged) {
                 LOGGER.i("remove config for uid %d since the packages for it changed", entry.uid);
-                config.packages.remove(entry);
-                changed = true;
+                store.remove(entry.uid);
             }
         }
 
         for (int userId : UserManagerApis.getUserIdsNoThrow()) {
-            for (PackageInfo pi : PackageManagerApis.getInstalledPackagesNoThrow(PackageManager.GET_PERMISSIONS, userId)) {
-                if (pi == null
-                        || pi.applicationInfo == null
-                        || pi.requestedPermissions == null
-                        || !ArraysKt.contains(pi.requestedPermissions, PERMISSION)) {
+            for (PackageCache.PackageRecord record : packageCache.getPackages(userId)) {
+                if (!record.requestsPermission(PackageCache.REQUESTED_PERMISSION_API)) {
                     continue;
                 }
 
-                int uid = pi.applicationInfo.uid;
+                int uid = record.uid;
                 boolean allowed;
                 try {
                     allowed = PermissionManagerApis.checkPermission(PERMISSION, uid) == PackageManager.PERMISSION_GRANTED;
@@ -173,66 +119,68 @@ public class ShizukuConfigManager extends ConfigManager {
                 }
 
                 List<String> packages = new ArrayList<>();
-                packages.add(pi.packageName);
+                packages.add(record.packageName);
 
                 updateLocked(uid, packages, ConfigManager.MASK_PERMISSION, allowed ? ConfigManager.FLAG_ALLOWED : 0);
-                changed = true;
             }
         }
+    }
 
-        if (changed) {
-            scheduleWriteLocked();
+    private void migrateLegacy(PackageCache packageCache) {
+        ShizukuConfig config = loadLegacy();
+        if (config == null) {
+            LOGGER.i("no existing config; starting empty");
+            return;
         }
-    }
 
-    private void scheduleWriteLocked() {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-            if (HandlerKt.getWorkerHandler().hasCallbacks(mWriteRunner)) {
-                return;
+        int count = 0;
+        if (config.packages != null) {
+            for (ShizukuConfig.PackageEntry entry : config.packages) {
+                if (entry == null) {
+                    continue;
+                }
+                Collection<String> packages = config.version < 2 || entry.packages == null
+                        ? packageCache.getPackageNamesForUid(entry.uid) : entry.packages;
+                store.put(new ShizukuConfig.PackageEntry(entry.uid, entry.flags,
+                        Collections.unmodifiableSet(new LinkedHashSet<>(packages))));
+                count++;
             }
-        } else {
-            HandlerKt.getWorkerHandler().removeCallbacks(mWriteRunner);
         }
-        HandlerKt.getWorkerHandler().postDelayed(mWriteRunner, WRITE_DELAY);
-    }
 
-    private ShizukuConfig.PackageEntry findLocked(int uid) {
-        for (ShizukuConfig.PackageEntry entry : config.packages) {
-            if (uid == entry.uid) {
-                return entry;
+        if (store.compactAndWait(MIGRATE_TIMEOUT)) {
+            LOGGER.i("migrated %d entries from %s", count, LEGACY_FILE);
+            if (!LEGACY_FILE.renameTo(LEGACY_FILE_MIGRATED)) {
+                LOGGER.w("failed to rename %s", LEGACY_FILE);
             }
+        } else {
+            // The JSON file is kept and migrated again on the next start
+            LOGGER.w("failed to migrate %s", LEGACY_FILE);
         }
-        return null;
     }
 
     @Nullable
     public ShizukuConfig.PackageEntry find(int uid) {
-        synchronized (this) {
-            return findLocked(uid);
-        }
+        return store.get(uid);
     }
 
     private void updateLocked(int uid, List<String> packages, int mask, int values) {
-        ShizukuConfig.PackageEntry entry = findLocked(uid);
+        ShizukuConfig.PackageEntry entry = store.get(uid);
+        int flags;
+        Set<String> newPackages;
         if (entry == null) {
-            entry = new ShizukuConfig.PackageEntry(uid, mask & values);
-            config.packages.add(entry);
+            flags = mask & values;
+            newPackages = new LinkedHashSet<>();
         } else {
-            int newValue = (entry.flags & ~mask) | (mask & values);
-            if (newValue == entry.flags) {
+            flags = (entry.flags & ~mask) | (mask & values);
+            if (flags == entry.flags) {
                 return;
             }
-            entry.flags = newValue;
+            newPackages = new LinkedHashSet<>(entry.packages);
         }
         if (packages != null) {
-            for (String packageName : packages) {
-                if (entry.packages.contains(packageName)) {
-                    continue;
-                }
-                entry.packages.add(packageName);
-            }
+            newPackages.addAll(packages);
         }
-        scheduleWriteLocked();
+        store.put(new ShizukuConfig.PackageEntry(uid, flags, Collections.unmodifiableSet(newPackages)));
     }
 
     public void update(int uid, List<String> packages, int mask, int values) {
@@ -241,18 +189,16 @@ public class ShizukuConfigManager extends ConfigManager {
         }
     }
 
-    private void removeLocked(int uid) {
-        ShizukuConfig.PackageEntry entry = findLocked(uid);
-        if (entry == null) {
-            return;
-        }
-        config.packages.remove(entry);
-        scheduleWriteLocked();
-    }
-
     public void remove(int uid) {
         synchronized (this) {
-            removeLocked(uid);
+            store.remove(uid);
         }
     }
+
+    /**
+     * Waits until all changes are on disk, for use before the process exits.
+     */
+    public void flush() {
+        store.flushAndWait(FLUSH_TIMEOUT);
+    }
 }
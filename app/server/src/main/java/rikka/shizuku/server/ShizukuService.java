@@ -28,7 +28,6 @@ import android.os.IBinder;
 import android.os.Looper;
 import android.os.Parcel;
 import android.os.RemoteException;
-import android.os.ServiceManager;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -53,28 +52,36 @@ import rikka.rish.RishConfig;
 import rikka.shizuku.ShizukuApiConstants;
 import rikka.shizuku.server.api.IContentProviderUtils;
 import rikka.shizuku.server.util.HandlerUtil;
+import rikka.shizuku.server.util.ServiceReadiness;
+import rikka.shizuku.server.util.StartupTimeline;
 import rikka.shizuku.server.util.UserHandleCompat;
 
 public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuClientManager, ShizukuConfigManager> {
 
     public static void main(String[] args) {
+        StartupTimeline timeline = new StartupTimeline("shizuku_server");
+
         DdmHandleAppName.setAppName("shizuku_server", 0);
         RishConfig.setLibraryPath(System.getProperty("shizuku.library.path"));
 
         Looper.prepareMainLooper();
-        new ShizukuService();
-        Looper.loop();
-    }
 
-    private static void waitSystemService(String name) {
-        while (ServiceManager.getService(name) == null) {
-            try {
-                LOGGER.i("service " + name + " is not started, wait 1s.");
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
-                LOGGER.w(e.getMessage(), e);
-            }
-        }
+        LOGGER.i("starting server...");
+
+        // Service() creates the config manager, so the services have to be there before it runs
+        ServiceReadiness.waitForServices("package", Context.ACTIVITY_SERVICE, Context.USER_SERVICE, Context.APP_OPS_SERVICE);
+        timeline.mark("system services");
+
+        // The config manager and startup binder delivery both need the package list, load it
+        // while the rest of the service is being created
+        long preloadStart = StartupTimeline.now();
+        new Thread(() -> {
+            PackageCache.getInstance().loadAll();
+            timeline.mark("package cache", preloadStart);
+        }, "PackageCache").start();
+
+        new ShizukuService(timeline);
+        Looper.loop();
     }
 
     public static ApplicationInfo getManagerApplicationInfo() {
@@ -87,19 +94,15 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
     private final ShizukuClientManager clientManager;
     private final ShizukuConfigManager configManager;
     private final int managerAppId;
+    private final PermissionDecisionCache permissionCache = new PermissionDecisionCache();
+    private final PackageCache packageCache = PackageCache.getInstance();
 
-    public ShizukuService() {
+    public ShizukuService(StartupTimeline timeline) {
         super();
+        timeline.mark("managers");
 
         HandlerUtil.setMainHandler(mainHandler);
 
-        LOGGER.i("starting server...");
-
-        waitSystemService("package");
-        waitSystemService(Context.ACTIVITY_SERVICE);
-        waitSystemService(Context.USER_SERVICE);
-        waitSystemService(Context.APP_OPS_SERVICE);
-
         ApplicationInfo ai = getManagerApplicationInfo();
         if (ai == null) {
             System.exit(ServerConstants.MANAGER_APP_NOT_FOUND);
@@ -110,6 +113,15 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
 
         configManager = getConfigManager();
         clientManager = getClientManager();
+        timeline.mark("manager app");
+
+        // Registering the observers is two calls into system_server, independent of the rest
+        long registerStart = StartupTimeline.now();
+        Thread register = new Thread(() -> {
+            BinderSender.register(this);
+            timeline.mark("binder sender", registerStart);
+        }, "BinderSender-register");
+        register.start();
 
         ApkChangedObservers.start(ai.sourceDir, () -> {
             if (getManagerApplicationInfo() == null) {
@@ -118,12 +130,18 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
             }
         });
 
-        BinderSender.register(this);
+        try {
+            register.join();
+        } catch (InterruptedException e) {
+            LOGGER.w(e.getMessage(), e);
+        }
+        timeline.mark("observers");
+        LOGGER.i(timeline.toString());
 
-        mainHandler.post(() -> {
-            sendBinderToClient();
-            sendBinderToManager();
-        });
+        mainHandler.post(() -> StartupBinderDelivery.start(this));
+
+        // The first user service is usually requested right after the binders are delivered
+        mainHandler.post(() -> getUserServiceManager().getSpawner().prefill());
     }
 
     @Override
@@ -147,14 +165,23 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
     }
 
     private int checkCallingPermission() {
+        int callingUid = Binder.getCallingUid();
+        int result = permissionCache.getCallingPermission(callingUid);
+        if (result != PermissionDecisionCache.UNKNOWN) {
+            return result;
+        }
+
+        long generation = permissionCache.generation();
         try {
-            return ActivityManagerApis.checkPermission(ServerConstants.PERMISSION,
+            result = ActivityManagerApis.checkPermission(ServerConstants.PERMISSION,
                     Binder.getCallingPid(),
-                    Binder.getCallingUid());
+                    callingUid);
         } catch (Throwable tr) {
             LOGGER.w(tr, "checkCallingPermission");
             return PackageManager.PERMISSION_DENIED;
         }
+        permissionCache.putCallingPermission(callingUid, result, generation);
+        return result;
     }
 
     @Override
@@ -172,6 +199,7 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
     public void exit() {
         enforceManagerPermission("exit");
         LOGGER.i("exit");
+        configManager.flush();
         System.exit(0);
     }
 
@@ -199,8 +227,7 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
         boolean isManager;
         ClientRecord clientRecord = null;
 
-        List<String> packages = PackageManagerApis.getPackagesForUidNoThrow(callingUid);
-        if (!packages.contains(requestPackageName)) {
+        if (!packageCache.isPackageOfUid(requestPackageName, callingUid)) {
             LOGGER.w("Request package " + requestPackageName + "does not belong to uid " + callingUid);
             throw new SecurityException("Request package " + requestPackageName + "does not belong to uid " + callingUid);
         }
@@ -310,12 +337,13 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
         if (!onetime && allowed) {
             int userId = UserHandleCompat.getUserId(requestUid);
 
-            for (String packageName : PackageManagerApis.getPackagesForUidNoThrow(requestUid)) {
-                PackageInfo pi = PackageManagerApis.getPackageInfoNoThrow(packageName, PackageManager.GET_PERMISSIONS, userId);
-                if (pi == null || pi.requestedPermissions == null || !ArraysKt.contains(pi.requestedPermissions, PERMISSION)) {
+            for (PackageCache.PackageRecord record : packageCache.getPackagesForUid(requestUid)) {
+                if (!record.requestsPermission(PackageCache.REQUESTED_PERMISSION_API)) {
                     continue;
                 }
 
+                String packageName = record.packageName;
+
                 int deviceId = 0;//Context.DEVICE_ID_DEFAULT
                 if (allowed) {
                     PermissionManagerApis.grantRuntimePermission(packageName, PERMISSION, userId);
@@ -324,30 +352,44 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
                 }
             }
         }
+
+        if (!onetime) {
+            permissionCache.invalidate(requestUid);
+        }
     }
 
-    private int  getFlagsForUidInternal(int uid, int mask, boolean allowRuntimePermission) {
+    private int getFlagsForUidInternal(int uid, int mask, boolean allowRuntimePermission) {
+        boolean checkRuntimePermission = allowRuntimePermission && (mask & ConfigManager.MASK_PERMISSION) != 0;
+        int cached = permissionCache.getFlags(uid, checkRuntimePermission);
+        if (cached != PermissionDecisionCache.UNKNOWN) {
+            return cached & mask;
+        }
+
+        long generation = permissionCache.generation();
         ShizukuConfig.PackageEntry entry = configManager.find(uid);
         if (entry != null) {
+            permissionCache.putFlags(uid, entry.flags, true, generation);
             return entry.flags & mask;
         }
 
-        if (allowRuntimePermission && (mask & ConfigManager.MASK_PERMISSION) != 0) {
-            int userId = UserHandleCompat.getUserId(uid);
-            for (String packageName : PackageManagerApis.getPackagesForUidNoThrow(uid)) {
-                PackageInfo pi = PackageManagerApis.getPackageInfoNoThrow(packageName, PackageManager.GET_PERMISSIONS, userId);
-                if (pi == null || pi.requestedPermissions == null || !ArraysKt.contains(pi.requestedPermissions, PERMISSION)) {
+        if (checkRuntimePermission) {
+            for (PackageCache.PackageRecord record : packageCache.getPackagesForUid(uid)) {
+                if (!record.requestsPermission(PackageCache.REQUESTED_PERMISSION_API)) {
                     continue;
                 }
 
                 try {
                     if (PermissionManagerApis.checkPermission(PERMISSION, uid) == PackageManager.PERMISSION_GRANTED) {
+                        permissionCache.putFlags(uid, ConfigManager.FLAG_ALLOWED, false, generation);
                         return ConfigManager.FLAG_ALLOWED;
                     }
                 } catch (Throwable e) {
                     LOGGER.w("getFlagsForUid");
+                    // Don't cache a decision that is based on a failed query
+                    return 0;
                 }
             }
+            permissionCache.putFlags(uid, 0, false, generation);
         }
         return 0;
     }
@@ -385,12 +427,13 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
                 }
             }
 
-            for (String packageName : PackageManagerApis.getPackagesForUidNoThrow(uid)) {
-                PackageInfo pi = PackageManagerApis.getPackageInfoNoThrow(packageName, PackageManager.GET_PERMISSIONS, userId);
-                if (pi == null || pi.requestedPermissions == null || !ArraysKt.contains(pi.requestedPermissions, PERMISSION)) {
+            for (PackageCache.PackageRecord record : packageCache.getPackagesForUid(uid)) {
+                if (!record.requestsPermission(PackageCache.REQUESTED_PERMISSION_API)) {
                     continue;
                 }
 
+                String packageName = record.packageName;
+
                 int deviceId = 0;//Context.DEVICE_ID_DEFAULT
                 if (allowed) {
                     PermissionManagerApis.grantRuntimePermission(packageName, PERMISSION, userId);
@@ -403,6 +446,15 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
         }
 
         configManager.update(uid, null, mask, value);
+        permissionCache.invalidate(uid);
+    }
+
+    /**
+     * Called from {@link BinderSender} when all processes of the uid are gone, which is also
+     * what happens when its package is uninstalled or updated.
+     */
+    void onUidGone(int uid) {
+        permissionCache.invalidate(uid);
     }
 
     private void onPermissionRevoked(String packageName) {
@@ -420,6 +472,7 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
         }
 
         for (int user : users) {
+            // Not from PackageCache: the list has to include packages installed after the user was loaded
             for (PackageInfo pi : PackageManagerApis.getInstalledPackagesNoThrow(PackageManager.GET_META_DATA | PackageManager.GET_PERMISSIONS, user)) {
                 if (Objects.equals(MANAGER_APPLICATION_ID, pi.packageName)) continue;
                 if (pi.applicationInfo == null) continue;
@@ -461,46 +514,24 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
         return super.onTransact(code, data, reply, flags);
     }
 
-    void sendBinderToClient() {
-        for (int userId : UserManagerApis.getUserIdsNoThrow()) {
-            sendBinderToClient(this, userId);
-        }
-    }
+    static final int SEND_BINDER_OK = 0;
+    static final int SEND_BINDER_FAILED = 1;
+    static final int SEND_BINDER_PROVIDER_DEAD = 2;
 
-    private static void sendBinderToClient(Binder binder, int userId) {
-        try {
-            for (PackageInfo pi : PackageManagerApis.getInstalledPackagesNoThrow(PackageManager.GET_PERMISSIONS, userId)) {
-                if (pi == null || pi.requestedPermissions == null)
-                    continue;
-
-                if (ArraysKt.contains(pi.requestedPermissions, PERMISSION)) {
-                    sendBinderToUserApp(binder, pi.packageName, userId);
-                }
-            }
-        } catch (Throwable tr) {
-            LOGGER.e("exception when call getInstalledPackages", tr);
-        }
-    }
-
-    void sendBinderToManager() {
-        sendBinderToManger(this);
+    static void forceStopBeforeRetry(String packageName, int userId) {
+        // For unknown reason, sometimes this could happens
+        // Kill Shizuku app and try again could work
+        ActivityManagerApis.forceStopPackageNoThrow(packageName, userId);
+        LOGGER.e("kill %s in user %d and try again", packageName, userId);
     }
 
-    private static void sendBinderToManger(Binder binder) {
-        for (int userId : UserManagerApis.getUserIdsNoThrow()) {
-            sendBinderToManger(binder, userId);
-        }
-    }
-
-    static void sendBinderToManger(Binder binder, int userId) {
-        sendBinderToUserApp(binder, MANAGER_APPLICATION_ID, userId);
-    }
-
-    static void sendBinderToUserApp(Binder binder, String packageName, int userId) {
-        sendBinderToUserApp(binder, packageName, userId, true);
-    }
-
-    static void sendBinderToUserApp(Binder binder, String packageName, int userId, boolean retry) {
+    /**
+     * Makes one delivery attempt, retrying is left to the caller.
+     *
+     * @param retry {@code false} if this is already a retry
+     * @return one of {@code SEND_BINDER_*}
+     */
+    static int sendBinderToUserApp(Binder binder, String packageName, int userId, boolean retry) {
         try {
             DeviceIdleControllerApis.addPowerSaveTempWhitelistApp(packageName, 30 * 1000, userId,
                     316/* PowerExemptionManager#REASON_SHELL */, "shell");
@@ -528,20 +559,11 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
             provider = ActivityManagerApis.getContentProviderExternal(name, userId, token, name);
             if (provider == null) {
                 LOGGER.e("provider is null %s %d", name, userId);
-                return;
+                return SEND_BINDER_FAILED;
             }
             if (!provider.asBinder().pingBinder()) {
                 LOGGER.e("provider is dead %s %d", name, userId);
-
-                if (retry) {
-                    // For unknown reason, sometimes this could happens
-                    // Kill Shizuku app and try again could work
-                    ActivityManagerApis.forceStopPackageNoThrow(packageName, userId);
-                    LOGGER.e("kill %s in user %d and try again", packageName, userId);
-                    Thread.sleep(1000);
-                    sendBinderToUserApp(binder, packageName, userId, false);
-                }
-                return;
+                return SEND_BINDER_PROVIDER_DEAD;
             }
 
             if (!retry) {
@@ -554,11 +576,14 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
             Bundle reply = IContentProviderUtils.callCompat(provider, null, name, "sendBinder", null, extra);
             if (reply != null) {
                 LOGGER.i("send binder to user app %s in user %d", packageName, userId);
+                return SEND_BINDER_OK;
             } else {
                 LOGGER.w("failed to send binder to user app %s in user %d", packageName, userId);
+                return SEND_BINDER_FAILED;
             }
         } catch (Throwable tr) {
             LOGGER.e(tr, "failed send binder to user app %s in user %d", packageName, userId);
+            return SEND_BINDER_FAILED;
         } finally {
             if (provider != null) {
                 try {
@@ -570,13 +595,35 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
         }
     }
 
-    // ------ Sui only ------
-
     @Override
     public void dispatchPackageChanged(Intent intent) throws RemoteException {
+        int callingUid = Binder.getCallingUid();
+        if (UserHandleCompat.getAppId(callingUid) != managerAppId
+                && callingUid != OsUtils.getUid()
+                && UserHandleCompat.getAppId(callingUid) != 1000 /* Process.SYSTEM_UID */) {
+            LOGGER.w("dispatchPackageChanged is not allowed to be called from uid %d", callingUid);
+            return;
+        }
 
+        if (intent == null) {
+            return;
+        }
+
+        int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+        String packageName = intent.getData() != null ? intent.getData().getSchemeSpecificPart() : null;
+        LOGGER.d("dispatchPackageChanged: action=%s, package=%s, uid=%d", intent.getAction(), packageName, uid);
+        if (uid != -1) {
+            if (packageName != null) {
+                packageCache.refresh(packageName, UserHandleCompat.getUserId(uid));
+            }
+            permissionCache.invalidate(uid);
+        } else {
+            permissionCache.invalidateAll();
+        }
     }
 
+    // ------ Sui only ------
+
     @Override
     public boolean isHidden(int uid) throws RemoteException {
         return false;
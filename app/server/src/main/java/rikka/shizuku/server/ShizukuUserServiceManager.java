@@ -1,5 +1,6 @@
 package rikka.shizuku.server;
 
+import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.util.ArrayMap;
 
@@ -38,6 +39,15 @@ public class ShizukuUserServiceManager extends UserServiceManager {
                 token, packageName, classname, processNameSuffix, callingUid, debug);
     }
 
+    @Override
+    public String getUserServiceStandbyCmd() {
+        ApplicationInfo ai = ShizukuService.getManagerApplicationInfo();
+        if (ai == null) {
+            return null;
+        }
+        return ServiceStarter.commandForStandby("/system/bin/app_process", ai.sourceDir);
+    }
+
     @Override
     public void onUserServiceRecordCreated(UserServiceRecord record, PackageInfo packageInfo) {
         super.onUserServiceRecordCreated(record, packageInfo);
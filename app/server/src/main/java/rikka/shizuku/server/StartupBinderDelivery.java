@@ -0,0 +1,185 @@
+package rikka.shizuku.server;
+
+import static rikka.shizuku.server.ServerConstants.MANAGER_APPLICATION_ID;
+
+import android.os.Binder;
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rikka.hidden.compat.UserManagerApis;
+import rikka.shizuku.server.util.Logger;
+
+/**
+ * Sends the binder to every app that can use it once the server has started.
+ * <p>
+ * The candidates are computed once from {@link PackageCache}. The manager of every user goes
+ * first, then the other apps are delivered to by {@link #PARALLELISM} threads. A delivery that
+ * takes longer than {@link #DELIVERY_TIMEOUT} is counted as timed out and no longer waited for.
+ * A dead provider is handed to {@link BinderSender} to retry. At the end a report is logged,
+ * including the time from process start until the last client got the binder.
+ */
+class StartupBinderDelivery {
+
+    private static final Logger LOGGER = new Logger("StartupBinderDelivery");
+
+    private static final int PARALLELISM = 4;
+    private static final long DELIVERY_TIMEOUT = 10 * 1000;
+    private static final long POLL_INTERVAL = 500;
+
+    private static volatile long sTimeToLastClient = -1;
+
+    /**
+     * @return milliseconds from process start until the last client got the binder, or -1 if
+     * startup delivery has not finished yet
+     */
+    static long getTimeToLastClient() {
+        return sTimeToLastClient;
+    }
+
+    private static final class Delivery implements Runnable {
+
+        final Binder binder;
+        final String packageName;
+        final int userId;
+
+        final CountDownLatch done = new CountDownLatch(1);
+
+        volatile long startTime;
+        volatile long endTime;
+        volatile int result = -1;
+
+        Delivery(Binder binder, String packageName, int userId) {
+            this.binder = binder;
+            this.packageName = packageName;
+            this.userId = userId;
+        }
+
+        @Override
+        public void run() {
+            startTime = SystemClock.elapsedRealtime();
+            try {
+                result = ShizukuService.sendBinderToUserApp(binder, packageName, userId, true);
+                if (result == ShizukuService.SEND_BINDER_PROVIDER_DEAD) {
+                    BinderSender.deliver(packageName, userId);
+                }
+            } finally {
+                endTime = SystemClock.elapsedRealtime();
+                done.countDown();
+            }
+        }
+    }
+
+    private static final class Report {
+
+        int ok;
+        int failed;
+        int retrying;
+        int timedOut;
+        long lastClientTime = -1;
+
+        void add(Delivery delivery) {
+            switch (delivery.result) {
+                case ShizukuService.SEND_BINDER_OK:
+                    ok++;
+                    lastClientTime = Math.max(lastClientTime, delivery.endTime);
+                    break;
+                case ShizukuService.SEND_BINDER_PROVIDER_DEAD:
+                    retrying++;
+                    break;
+                default:
+                    failed++;
+                    break;
+            }
+        }
+    }
+
+    static void start(Binder binder) {
+        new Thread(() -> run(binder), "StartupBinderDelivery").start();
+    }
+
+    private static void run(Binder binder) {
+        List<Delivery> managers = new ArrayList<>();
+        List<Delivery> clients = new ArrayList<>();
+        for (int userId : UserManagerApis.getUserIdsNoThrow()) {
+            managers.add(new Delivery(binder, MANAGER_APPLICATION_ID, userId));
+            try {
+                for (PackageCache.PackageRecord record : PackageCache.getInstance().getPackages(userId)) {
+                    if (record.requestsPermission(PackageCache.REQUESTED_PERMISSION_API)
+                            && !MANAGER_APPLICATION_ID.equals(record.packageName)) {
+                        clients.add(new Delivery(binder, record.packageName, userId));
+                    }
+                }
+            } catch (Throwable tr) {
+                LOGGER.e(tr, "exception when listing packages of user %d", userId);
+            }
+        }
+
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(PARALLELISM, r -> {
+            Thread thread = new Thread(r, "StartupBinderDelivery-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Report report = new Report();
+        try {
+            deliver(executor, managers, report);
+            deliver(executor, clients, report);
+        } finally {
+            // Threads stuck in a timed out delivery are left to finish on their own
+            executor.shutdown();
+        }
+
+        long start = Process.getStartElapsedRealtime();
+        sTimeToLastClient = report.lastClientTime != -1 ? report.lastClientTime - start : -1;
+        LOGGER.i("startup binder delivery to %d apps: %d ok, %d failed, %d retrying, %d timed out, last client after %d ms, done after %d ms",
+                managers.size() + clients.size(), report.ok, report.failed, report.retrying, report.timedOut,
+                sTimeToLastClient, SystemClock.elapsedRealtime() - start);
+    }
+
+    private static void deliver(ExecutorService executor, List<Delivery> deliveries, Report report) {
+        for (Delivery delivery : deliveries) {
+            executor.execute(delivery);
+        }
+
+        // Deliveries that have not even started when this passes are given up as well, so a few
+        // hung providers cannot hold the report back indefinitely
+        long deadline = SystemClock.elapsedRealtime()
+                + DELIVERY_TIMEOUT * (1 + (deliveries.size() + PARALLELISM - 1) / PARALLELISM);
+
+        for (Delivery delivery : deliveries) {
+            while (true) {
+                if (delivery.done.getCount() == 0) {
+                    report.add(delivery);
+                    break;
+                }
+                long now = SystemClock.elapsedRealtime();
+                long startTime = delivery.startTime;
+                long wait = startTime != 0 ? startTime + DELIVERY_TIMEOUT - now : POLL_INTERVAL;
+                wait = Math.min(wait, deadline - now);
+                if (wait <= 0) {
+                    LOGGER.w("delivery to %s in user %d timed out", delivery.packageName, delivery.userId);
+                    report.timedOut++;
+                    break;
+                }
+                try {
+                    if (delivery.done.await(wait, TimeUnit.MILLISECONDS)) {
+                        report.add(delivery);
+                        break;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -7,12 +7,34 @@ import static androidx.annotation.RestrictTo.Scope.LIBRARY_GROUP_PREFIX;
 public class ShizukuApiConstants {
 
     public static final int SERVER_VERSION = 13;
-    public static final int SERVER_PATCH_VERSION = 5;
+    public static final int SERVER_PATCH_VERSION = 6;
 
     // binder
     public static final String BINDER_DESCRIPTOR = "moe.shizuku.server.IShizukuService";
     public static final int BINDER_TRANSACTION_transact = 1;
 
+    /**
+     * Forwards several transactions in one call (server patch version 6 and above).
+     * <p>
+     * Data, after the interface token: {@code int} flags ({@code BATCH_FLAG_*}), {@code int}
+     * count, then for each entry: the target binder (strong binder), {@code int} code,
+     * {@code int} flags, {@code int} payload length and the payload itself, appended with
+     * {@code Parcel.appendFrom}.
+     * <p>
+     * Reply, unless the batch is oneway: {@code int} number of executed entries, then for each:
+     * {@code int} result ({@code BATCH_RESULT_*}), {@code int} reply length and the reply.
+     */
+    public static final int BINDER_TRANSACTION_transactBatch = 2;
+
+    public static final int BATCH_FLAG_STOP_ON_ERROR = 1;
+    public static final int BATCH_FLAG_ONEWAY = 1 << 1;
+
+    public static final int BATCH_RESULT_OK = 0;
+    public static final int BATCH_RESULT_FAILED = 1;
+    public static final int BATCH_RESULT_REMOTE_EXCEPTION = 2;
+
+    public static final int BATCH_MAX_SIZE = 4096;
+
     // user service
     @RestrictTo(LIBRARY_GROUP_PREFIX)
     public static final int USER_SERVICE_TRANSACTION_destroy = 16777115;
@@ -22,9 +22,13 @@ import rikka.rish.RishConfig;
 import rikka.shizuku.ShizukuApiConstants;
 import rikka.shizuku.server.ClientRecord;
 import rikka.shizuku.server.util.HandlerUtil;
+import rikka.shizuku.server.util.ServiceReadiness;
+import rikka.shizuku.server.util.StartupTimeline;
 import com.example.tapgame.server.IMyPermissionServer;
 
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class MyPersistentServer {
 
@@ -33,6 +37,9 @@ public class MyPersistentServer {
     private static final String PERMISSION = "com.example.tapgame.permission.API";
 
     public static void main(String[] args) {
+        // Новая защёлка на каждый запуск, иначе после первого старта awaitStarted сразу вернёт true
+        CountDownLatch latch = new CountDownLatch(1);
+        started = latch;
         try {
             Log.i(TAG, "Starting TapGame server...");
             
@@ -47,6 +54,7 @@ public class MyPersistentServer {
                 try {
                     Looper.prepare();
                     HandlerUtil.setMainHandler(new Handler(Looper.myLooper()));
+                    latch.countDown();
                     Looper.loop();
                 } catch (Exception e) {
                     Log.e(TAG, "Server thread error", e);
@@ -62,13 +70,21 @@ public class MyPersistentServer {
         }
     }
 
-    private static void waitSystemService(String name) {
-        // Упрощенная версия без ServiceManager
+    // Защёлка последнего вызова main(): срабатывает, когда конструктор отработал без ошибок,
+    // а поток с Looper запущен и обработчик установлен
+    private static volatile CountDownLatch started = new CountDownLatch(1);
+
+    /**
+     * Ждёт запуска сервера из последнего вызова {@link #main} вместо фиксированной задержки.
+     *
+     * @return {@code true}, если сервер запустился за {@code timeoutMillis}
+     */
+    public static boolean awaitStarted(long timeoutMillis) {
         try {
-            Log.i(TAG, "waiting for system services...");
-            Thread.sleep(2000);
+            return started.await(timeoutMillis, TimeUnit.MILLISECONDS);
         } catch (InterruptedException e) {
-            Log.w(TAG, e.getMessage(), e);
+            Thread.currentThread().interrupt();
+            return false;
         }
     }
 
@@ -104,10 +120,11 @@ public class MyPersistentServer {
         
         HandlerUtil.setMainHandler(mainHandler);
         Log.i(TAG, "starting TapGame server...");
-    
-        waitSystemService("package");
-        waitSystemService(Context.ACTIVITY_SERVICE);
-        waitSystemService(Context.USER_SERVICE);
+        StartupTimeline timeline = new StartupTimeline("tapgame_server");
+
+        // Сервисы проверяются сразу; ждём только те, которых ещё нет
+        ServiceReadiness.waitForServices("package", Context.ACTIVITY_SERVICE, Context.USER_SERVICE);
+        timeline.mark("system services");
     
         // Упрощенная версия получения managerAppId
         managerAppId = android.os.Process.myUid();
@@ -115,12 +132,14 @@ public class MyPersistentServer {
         // Инициализируем менеджеры напрямую
         configManager = new TapGameConfigManager(null);
         clientManager = new TapGameClientManager(configManager);
+        timeline.mark("managers");
         // Восстанавливаем разрешения при старте сервера
         configManager.restorePermissions();
         // Предоставляем начальные разрешения
         grantInitialPermissions();
+        timeline.mark("permissions");
     
-        Log.i(TAG, "TapGame server started");
+        Log.i(TAG, "TapGame server started, " + timeline);
     }
 
     private void grantInitialPermissions() {
@@ -1,105 +1,142 @@
 package com.example.tapgame.server;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import rikka.shizuku.server.ConfigManager;
 import rikka.shizuku.server.ConfigPackageEntry;
-import rikka.shizuku.server.util.Logger;
-
+import rikka.shizuku.server.util.CopyOnWriteLongMap;
+
+/**
+ * Конфиг разрешений TapGame-сервера.
+ * <p>
+ * Записи живут в памяти в {@link CopyOnWriteLongMap} (uid → неизменяемая {@link Entry}), поэтому
+ * {@link #find(int)}, который вызывается при каждой проверке разрешения, не читает
+ * SharedPreferences, ничего не парсит и не создаёт объектов. Каждый вызов {@link #update},
+ * {@link #update(Map)} и {@link #remove} сохраняется одной транзакцией {@link SharedPreferences.Editor}.
+ */
 public class TapGameConfigManager extends ConfigManager {
 
     private static final String TAG = "TapGameConfigManager";
     private static final String PREFS_NAME = "tapgame_config";
-    private static final String KEY_ALLOWED_UID = "allowed_uid";
-    private static final String KEY_PACKAGES = "packages_";
+    private static final String KEY_FLAGS = "flags_";
+    private static final String KEY_PACKAGE_SET = "package_set_";
+
+    // Старый формат: boolean-флаг и пакеты строкой через запятую, переносится при загрузке
+    private static final String LEGACY_KEY_ALLOWED_UID = "allowed_uid";
+    private static final String LEGACY_KEY_PACKAGES = "packages_";
+
+    /**
+     * Неизменяемая запись конфига; при изменении заменяется целиком.
+     */
+    public static final class Entry extends ConfigPackageEntry {
+
+        public final int uid;
+        public final int flags;
+        public final List<String> packages;
+
+        Entry(int uid, int flags, List<String> packages) {
+            this.uid = uid;
+            this.flags = flags;
+            this.packages = Collections.unmodifiableList(packages);
+        }
+
+        @Override
+        public boolean isAllowed() {
+            return (flags & FLAG_ALLOWED) != 0;
+        }
+
+        @Override
+        public boolean isDenied() {
+            return (flags & FLAG_DENIED) != 0;
+        }
+    }
+
+    /**
+     * Изменение для {@link #update(Map)}, те же аргументы, что у {@link #update(int, List, int, int)}.
+     */
+    public static final class Change {
+
+        @Nullable
+        final List<String> packages;
+        final int mask;
+        final int values;
+
+        public Change(@Nullable List<String> packages, int mask, int values) {
+            this.packages = packages;
+            this.mask = mask;
+            this.values = values;
+        }
+    }
 
     private final SharedPreferences prefs;
     private final int managerAppId;
+    private final Entry managerEntry;
+    private final CopyOnWriteLongMap<Entry> entries = new CopyOnWriteLongMap<>();
 
     public TapGameConfigManager(Context context) {
         this.prefs = context != null ? context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE) : null;
         this.managerAppId = context != null ? context.getApplicationInfo().uid : android.os.Process.myUid();
+        this.managerEntry = new Entry(managerAppId, FLAG_ALLOWED, new ArrayList<>());
+        load();
     }
 
-    // Добавить после строки 29 (после конструктора):
     public void restorePermissions() {
-        if (prefs == null) return;
-        
-        Log.d(TAG, "Restoring permissions from storage...");
-        
-        // Восстанавливаем разрешения для manager app
-        boolean managerAllowed = prefs.getBoolean(KEY_ALLOWED_UID + managerAppId, false);
-        if (managerAllowed) {
-            Log.d(TAG, "Manager app permissions restored");
-        }
-        
-        // Можно добавить восстановление для других UID если нужно
+        Log.d(TAG, "Permissions restored for " + entries.size() + " uids, manager app always allowed");
     }
 
-    @Nullable
-    @Override
-    public ConfigPackageEntry find(int uid) {
-        if (uid == managerAppId) {
-            return createConfigPackageEntry(uid, new ArrayList<>(), FLAG_ALLOWED);
-        }
-        
-        if (prefs != null) {
-            boolean isAllowed = prefs.getBoolean(KEY_ALLOWED_UID + uid, false);
-            if (isAllowed) {
-                List<String> packages = getPackagesForUid(uid);
-                return createConfigPackageEntry(uid, packages, FLAG_ALLOWED);
-            }
-        }
-        
-        return null;
-    }
-
-    // Изменить метод update (строки 63-83):
-    @Override
-    public void update(int uid, List<String> packages, int mask, int values) {
+    private void load() {
         if (prefs == null) return;
-        
-        SharedPreferences.Editor editor = prefs.edit();
-        
-        if ((mask & FLAG_ALLOWED) != 0) {
-            boolean allowed = (values & FLAG_ALLOWED) != 0;
-            editor.putBoolean(KEY_ALLOWED_UID + uid, allowed);
-            
-            if (allowed) {
-                savePackagesForUid(uid, packages);
-                Log.d(TAG, "Permission granted and saved for UID: " + uid);
-            } else {
-                Log.d(TAG, "Permission denied and saved for UID: " + uid);
+
+        SharedPreferences.Editor migration = null;
+        for (Map.Entry<String, ?> pref : prefs.getAll().entrySet()) {
+            String key = pref.getKey();
+            Object value = pref.getValue();
+            if (key.startsWith(KEY_FLAGS) && value instanceof Integer) {
+                int uid = parseUid(key, KEY_FLAGS);
+                if (uid == -1) continue;
+                Set<String> packages = prefs.getStringSet(KEY_PACKAGE_SET + uid, null);
+                entries.put(uid, new Entry(uid, (Integer) value,
+                        packages != null ? new ArrayList<>(packages) : new ArrayList<>()));
+            } else if (key.startsWith(LEGACY_KEY_ALLOWED_UID) && value instanceof Boolean) {
+                int uid = parseUid(key, LEGACY_KEY_ALLOWED_UID);
+                if (uid == -1) continue;
+                if (migration == null) migration = prefs.edit();
+                if ((Boolean) value) {
+                    Entry entry = new Entry(uid, FLAG_ALLOWED,
+                            parseLegacyPackages(prefs.getString(LEGACY_KEY_PACKAGES + uid, "")));
+                    entries.put(uid, entry);
+                    writeEntry(migration, entry);
+                }
+                migration.remove(key);
+                migration.remove(LEGACY_KEY_PACKAGES + uid);
             }
         }
-        
-        editor.apply();
+        if (migration != null) {
+            migration.apply();
+            Log.i(TAG, "Migrated legacy config");
+        }
     }
 
-    @Override
-    public void remove(int uid) {
-        if (prefs == null) return;
-        
-        SharedPreferences.Editor editor = prefs.edit();
-        editor.remove(KEY_ALLOWED_UID + uid);
-        editor.remove(KEY_PACKAGES + uid);
-        editor.apply();
+    private static int parseUid(String key, String prefix) {
+        try {
+            return Integer.parseInt(key.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
     }
 
-    private List<String> getPackagesForUid(int uid) {
-        if (prefs == null) return new ArrayList<>();
-        
-        String packagesStr = prefs.getString(KEY_PACKAGES + uid, "");
-        if (packagesStr.isEmpty()) {
-            return new ArrayList<>();
-        }
-        
+    private static List<String> parseLegacyPackages(String packagesStr) {
         List<String> packages = new ArrayList<>();
         for (String pkg : packagesStr.split(",")) {
             if (!pkg.trim().isEmpty()) {
@@ -109,36 +146,90 @@ public class TapGameConfigManager extends ConfigManager {
         return packages;
     }
 
-    private void savePackagesForUid(int uid, List<String> packages) {
-        if (prefs == null) return;
-        
-        String packagesStr = String.join(",", packages);
-        prefs.edit().putString(KEY_PACKAGES + uid, packagesStr).apply();
+    @Nullable
+    @Override
+    public Entry find(int uid) {
+        if (uid == managerAppId) {
+            return managerEntry;
+        }
+        return entries.get(uid);
     }
-    
-    // Создаем ConfigPackageEntry через фабричный метод
-    private ConfigPackageEntry createConfigPackageEntry(int uid, List<String> packages, int flags) {
-        return new ConfigPackageEntry() {
-            
-            public int getUid() {
-                return uid;
-            }
 
-            public List<String> getPackages() {
-                return packages;
+    @Override
+    public void update(int uid, List<String> packages, int mask, int values) {
+        synchronized (this) {
+            SharedPreferences.Editor editor = prefs != null ? prefs.edit() : null;
+            if (updateLocked(editor, uid, packages, mask, values) && editor != null) {
+                editor.apply();
             }
+        }
+    }
 
-            public int getFlags() {
-                return flags;
+    /**
+     * Применяет изменения для нескольких uid и сохраняет их одной транзакцией.
+     */
+    public void update(@NonNull Map<Integer, Change> changes) {
+        synchronized (this) {
+            SharedPreferences.Editor editor = prefs != null ? prefs.edit() : null;
+            boolean changed = false;
+            for (Map.Entry<Integer, Change> e : changes.entrySet()) {
+                Change change = e.getValue();
+                changed |= updateLocked(editor, e.getKey(), change.packages, change.mask, change.values);
             }
-
-            public boolean isAllowed() {
-                return (flags & FLAG_ALLOWED) != 0;
+            if (changed && editor != null) {
+                editor.apply();
             }
+        }
+    }
+
+    /**
+     * @return изменилась ли запись
+     */
+    private boolean updateLocked(@Nullable SharedPreferences.Editor editor, int uid,
+                                 @Nullable List<String> packages, int mask, int values) {
+        Entry old = entries.get(uid);
+        int flags = ((old != null ? old.flags : 0) & ~mask) | (mask & values);
+        List<String> newPackages = packages != null ? packages : old != null ? old.packages : new ArrayList<>();
+
+        if (flags == 0) {
+            return removeLocked(editor, uid);
+        }
+        if (old != null && old.flags == flags && old.packages.equals(newPackages)) {
+            return false;
+        }
+
+        Entry entry = new Entry(uid, flags, new ArrayList<>(newPackages));
+        entries.put(uid, entry);
+        if (editor != null) {
+            writeEntry(editor, entry);
+        }
+        Log.d(TAG, "Flags " + flags + " saved for UID: " + uid);
+        return true;
+    }
+
+    private static void writeEntry(SharedPreferences.Editor editor, Entry entry) {
+        editor.putInt(KEY_FLAGS + entry.uid, entry.flags);
+        editor.putStringSet(KEY_PACKAGE_SET + entry.uid, new HashSet<>(entry.packages));
+    }
 
-            public boolean isDenied() {
-                return (flags & FLAG_DENIED) != 0;
+    @Override
+    public void remove(int uid) {
+        synchronized (this) {
+            SharedPreferences.Editor editor = prefs != null ? prefs.edit() : null;
+            if (removeLocked(editor, uid) && editor != null) {
+                editor.apply();
             }
-        };
+        }
+    }
+
+    private boolean removeLocked(@Nullable SharedPreferences.Editor editor, int uid) {
+        if (entries.remove(uid) == null) {
+            return false;
+        }
+        if (editor != null) {
+            editor.remove(KEY_FLAGS + uid);
+            editor.remove(KEY_PACKAGE_SET + uid);
+        }
+        return true;
     }
-}
\ No newline at end of file
+}
@@ -10,9 +10,9 @@ import android.os.IBinder
 import android.util.Log
 import androidx.core.app.NotificationCompat
 import androidx.core.app.RemoteInput
-import androidx.lifecycle.Observer
 import com.example.tapgame.R
 import com.example.tapgame.data.SettingsDataStore
+import com.example.tapgame.utils.AdbDiscovery
 import com.example.tapgame.utils.NetworkUtils
 import com.example.tapgame.utils.PermissionChecker
 import com.example.tapgame.server.MyPersistentServer
@@ -37,6 +37,10 @@ class WifiDebuggingService : Service() {
         private const val KEY_REMOTE_INPUT = "pairing_code"
         private const val KEY_PORT = "port"
         private const val TAG = "WifiDebuggingService"
+        private const val CONNECT_PORT_TIMEOUT = 15_000L
+        private const val SERVER_START_TIMEOUT = 5_000L
+        private const val ACTIVE_CHECK_ATTEMPTS = 5
+        private const val ACTIVE_CHECK_INITIAL_DELAY = 100L
 
         fun startIntent(context: Context): Intent {
             return Intent(context, WifiDebuggingService::class.java).setAction(ACTION_START_PAIRING)
@@ -45,7 +49,7 @@ class WifiDebuggingService : Service() {
 
     private val serviceScope = CoroutineScope(Dispatchers.IO + SupervisorJob())
     private lateinit var settingsDataStore: SettingsDataStore
-    private var pairingMdns: AdbMdns? = null
+    private var pairingSearchJob: Job? = null
 
     override fun onCreate() {
         super.onCreate()
@@ -80,13 +84,16 @@ class WifiDebuggingService : Service() {
     }
 
     private fun startPairingMdnsSearch() {
-        pairingMdns?.stop()
-        pairingMdns = AdbMdns(this, AdbMdns.TLS_PAIRING, Observer { port ->
+        pairingSearchJob?.cancel()
+        // Порт сопряжения меняется при каждом открытии окна, поэтому кэш сбрасываем.
+        // Поиск порта подключения идёт параллельно и к концу сопряжения обычно уже готов.
+        AdbDiscovery.invalidate()
+        pairingSearchJob = serviceScope.launch {
+            val port = AdbDiscovery.findPairingPort(applicationContext, Long.MAX_VALUE)
             if (port > 0) {
                 updateNotification(createInputNotification(port))
-                pairingMdns?.stop()
             }
-        }).apply { start() }
+        }
     }
 
     private suspend fun performPairingAndStartServer(code: String, port: Int) {
@@ -95,7 +102,7 @@ class WifiDebuggingService : Service() {
         var error: Throwable? = null
         try {
             val keyStore = PreferenceAdbKeyStore(getSharedPreferences("adb_key", Context.MODE_PRIVATE))
-            val key = AdbKey(keyStore, "TapGameKey")
+            val key = AdbKey.obtain(keyStore, "TapGameKey")
 
             // Получаем локальный IP-адрес
             val localIp = NetworkUtils.getLocalIpAddress(applicationContext) ?: "127.0.0.1"
@@ -109,18 +116,24 @@ class WifiDebuggingService : Service() {
 
             updateNotification(createWorkingNotification("Запуск службы..."))
             Log.d(TAG, "Шаг 2: Ищем порт для подключения...")
-            val connectPort = findAdbConnectPort()
-            if (connectPort == -1) throw Exception("Не удалось найти порт для подключения.")
-            settingsDataStore.setAdbConnectPort(connectPort)
+            val lastKnownPort = settingsDataStore.adbConnectPortFlow.first()
+            var connectPort = findAdbConnectPort(lastKnownPort)
             Log.d(TAG, "Порт для подключения найден: $connectPort")
 
             Log.d(TAG, "Шаг 3: Подключаемся и запускаем сервер-маркер...")
-            val adbClient = AdbClient(localIp, connectPort, key)
-            adbClient.connect()
-
-            adbClient.shell("killall -9 sh")
-            adbClient.shell("exec -a tapgame_marker sleep 9999999")
-            adbClient.close()
+            try {
+                startMarker(localIp, connectPort, key)
+            } catch (e: Exception) {
+                // Сохранённый порт мог остаться от прошлого включения отладки и теперь
+                // принадлежать другому сервису, поэтому один раз ищем порт заново через mDNS
+                if (connectPort != lastKnownPort) throw e
+                Log.w(TAG, "Сохранённый порт $connectPort не подошёл, ищем через mDNS", e)
+                AdbDiscovery.invalidate()
+                connectPort = findAdbConnectPort(-1)
+                Log.d(TAG, "Порт для подключения найден: $connectPort")
+                startMarker(localIp, connectPort, key)
+            }
+            settingsDataStore.setAdbConnectPort(connectPort)
             Log.d(TAG, "Сервер-маркер успешно запущен.")
             
             Log.d(TAG, "Шаг 4: Запускаем MyPersistentServer...")
@@ -128,10 +141,13 @@ class WifiDebuggingService : Service() {
                 updateNotification(createWorkingNotification("Запуск встроенного сервера..."))
                 
                 MyPersistentServer.main(arrayOf())
-                delay(3000) // Ждем запуска сервера
+                // Ждём сигнала о запуске, а не фиксированные 3 секунды
+                val serverStarted = withContext(Dispatchers.IO) {
+                    MyPersistentServer.awaitStarted(SERVER_START_TIMEOUT)
+                }
 
                 // Проверяем, запустился ли сервер
-                val serverRunning = MyPersistentServer.isServerRunning()
+                val serverRunning = serverStarted && MyPersistentServer.isServerRunning()
                 Log.d(TAG, "Server running: $serverRunning")
                 
                 if (serverRunning) {
@@ -171,38 +187,33 @@ class WifiDebuggingService : Service() {
         }
     }
 
-    private suspend fun findAdbConnectPort(): Int {
-        for (attempt in 1..3) {
-            Log.d(TAG, "Попытка найти порт подключения №$attempt...")
-            val portDeferred = CompletableDeferred<Int>()
-            val adbConnectMdns = AdbMdns(applicationContext, AdbMdns.TLS_CONNECT, Observer { port ->
-                if (port > 0 && !portDeferred.isCompleted) {
-                    portDeferred.complete(port)
-                }
-            })
-            adbConnectMdns.start()
-            val resultPort = withTimeoutOrNull(5000) { portDeferred.await() }
-            adbConnectMdns.stop()
-            if (resultPort != null) return resultPort
-            Log.w(TAG, "Попытка №$attempt не удалась, ждем 1 секунду...")
-            delay(1000)
+    private suspend fun findAdbConnectPort(lastKnownPort: Int): Int {
+        val port = AdbDiscovery.findConnectPort(applicationContext, lastKnownPort, CONNECT_PORT_TIMEOUT)
+        if (port == -1) throw Exception("Не удалось найти порт для подключения.")
+        return port
+    }
+
+    private suspend fun startMarker(host: String, port: Int, key: AdbKey) {
+        AdbConnectionPool.use(host, port, key) { adbClient ->
+            adbClient.shell("killall -9 sh")
+            adbClient.shell("exec -a tapgame_marker sleep 9999999")
         }
-        return -1
     }
     private fun handleResult(success: Boolean, error: Throwable?) {
         serviceScope.launch {
-            delay(2000) // Увеличиваем задержку перед проверкой
             settingsDataStore.setAdbPaired(success)
             
             var isPermissionActive = false // Выносим объявление переменной вне блока if
             if (success) {
-                // Добавляем несколько попыток проверки
-                repeat(3) { attempt ->
+                // Первая проверка сразу, повторные — с коротким экспоненциальным интервалом
+                var retryDelay = ACTIVE_CHECK_INITIAL_DELAY
+                for (attempt in 0 until ACTIVE_CHECK_ATTEMPTS) {
                     isPermissionActive = withContext(Dispatchers.IO) {
                         PermissionChecker.isTapGameServerActive(applicationContext)
                     }
-                    if (isPermissionActive) return@repeat
-                    delay(1000L * (attempt + 1))
+                    if (isPermissionActive || attempt == ACTIVE_CHECK_ATTEMPTS - 1) break
+                    delay(retryDelay)
+                    retryDelay *= 2
                 }
                 Log.d(TAG, "Permission check result: $isPermissionActive")
             }
@@ -218,7 +229,8 @@ class WifiDebuggingService : Service() {
     }
 
     private fun stopService() {
-        pairingMdns?.stop()
+        pairingSearchJob?.cancel()
+        AdbDiscovery.stop()
         stopForeground(true)
         stopSelf()
     }
@@ -303,7 +315,7 @@ class WifiDebuggingService : Service() {
 
     override fun onDestroy() {
         super.onDestroy()
-        pairingMdns?.stop()
+        AdbDiscovery.stop()
         serviceScope.cancel()
     }
 
@@ -319,7 +331,7 @@ class WifiDebuggingService : Service() {
             Log.d(TAG, "Отключаем WiFi отладку...")
             // Отправляем команду через ADB для отключения WiFi отладки
             val keyStore = PreferenceAdbKeyStore(getSharedPreferences("adb_key", Context.MODE_PRIVATE))
-            val key = AdbKey(keyStore, "TapGameKey")
+            val key = AdbKey.obtain(keyStore, "TapGameKey")
             val localIp = NetworkUtils.getLocalIpAddress(applicationContext) ?: "127.0.0.1"
             
             // Получаем порт из DataStore
@@ -327,10 +339,12 @@ class WifiDebuggingService : Service() {
                 val connectPort = settingsDataStore.adbConnectPortFlow.first()
                 
                 if (connectPort != -1) {
-                    val adbClient = AdbClient(localIp, connectPort, key)
-                    adbClient.connect()
-                    adbClient.shell("settings put global adb_wifi_enabled 0")
-                    adbClient.close()
+                    val adbClient = AdbConnectionPool.use(localIp, connectPort, key) { adbClient ->
+                        adbClient.shell("settings put global adb_wifi_enabled 0")
+                        adbClient
+                    }
+                    // После отключения отладки соединение больше не будет работать
+                    AdbConnectionPool.evict(localIp, connectPort, adbClient)
                     Log.d(TAG, "WiFi отладка отключена")
                 } else {
                     Log.w(TAG, "Не удалось получить порт для отключения WiFi отладки")
@@ -0,0 +1,108 @@
+// utils/AdbDiscovery.kt
+package com.example.tapgame.utils
+
+import android.content.Context
+import android.os.SystemClock
+import android.util.Log
+import androidx.lifecycle.Observer
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.withTimeoutOrNull
+import moe.shizuku.manager.adb.AdbMdns
+
+/**
+ * Поиск портов ADB через mDNS. Сервисы `_adb-tls-connect` и `_adb-tls-pairing` ищутся
+ * одновременно, найденные порты кэшируются на [ENDPOINT_TTL], а сохранённый порт подключения
+ * проверяется первым, без mDNS вообще.
+ */
+object AdbDiscovery {
+
+    private const val TAG = "AdbDiscovery"
+    private const val ENDPOINT_TTL = 60_000L
+
+    private class Endpoint(val port: Int, val resolvedAt: Long) {
+        val isFresh get() = SystemClock.elapsedRealtime() - resolvedAt < ENDPOINT_TTL
+    }
+
+    private val connectEndpoint = MutableStateFlow<Endpoint?>(null)
+    private val pairingEndpoint = MutableStateFlow<Endpoint?>(null)
+
+    private var connectMdns: AdbMdns? = null
+    private var pairingMdns: AdbMdns? = null
+
+    /**
+     * Запускает поиск обоих сервисов, если он ещё не идёт.
+     */
+    @Synchronized
+    fun start(context: Context) {
+        val appContext = context.applicationContext
+        if (connectMdns == null) {
+            connectMdns = AdbMdns(appContext, AdbMdns.TLS_CONNECT, Observer { port ->
+                update(connectEndpoint, AdbMdns.TLS_CONNECT, port)
+            }).apply { start() }
+        }
+        if (pairingMdns == null) {
+            pairingMdns = AdbMdns(appContext, AdbMdns.TLS_PAIRING, Observer { port ->
+                update(pairingEndpoint, AdbMdns.TLS_PAIRING, port)
+            }).apply { start() }
+        }
+    }
+
+    @Synchronized
+    fun stop() {
+        connectMdns?.stop()
+        connectMdns = null
+        pairingMdns?.stop()
+        pairingMdns = null
+    }
+
+    /**
+     * Порт для подключения. Сначала проверяется [lastKnownPort] (настройка ADB_CONNECT_PORT),
+     * затем кэш mDNS, и только потом ожидается результат поиска.
+     *
+     * Для [lastKnownPort] проверяется только то, что порт кем-то занят: после перезапуска отладки
+     * это может быть чужой сервис. Если подключиться к нему не удалось, вызовите [invalidate] и
+     * повторите поиск с `lastKnownPort = -1`.
+     *
+     * @return порт или -1, если за [timeout] ничего не найдено
+     */
+    suspend fun findConnectPort(context: Context, lastKnownPort: Int, timeout: Long): Int {
+        if (lastKnownPort > 0 && NetworkUtils.isPortInUse(lastKnownPort)) {
+            Log.d(TAG, "Using last known connect port $lastKnownPort")
+            return lastKnownPort
+        }
+        return await(context, connectEndpoint, timeout)
+    }
+
+    suspend fun findPairingPort(context: Context, timeout: Long): Int {
+        return await(context, pairingEndpoint, timeout)
+    }
+
+    /**
+     * Сбрасывает кэш и перезапускает поиск, например при новом окне сопряжения.
+     */
+    fun invalidate() {
+        stop()
+        connectEndpoint.value = null
+        pairingEndpoint.value = null
+    }
+
+    private suspend fun await(context: Context, endpoint: MutableStateFlow<Endpoint?>, timeout: Long): Int {
+        val cached = endpoint.value
+        if (cached != null) {
+            if (cached.isFresh) return cached.port
+            // AdbMdns сообщает о сервисе только один раз, поэтому устаревшую запись
+            // можно обновить лишь новым циклом поиска
+            invalidate()
+        }
+        start(context)
+        return withTimeoutOrNull(timeout) {
+            endpoint.first { it != null && it.isFresh }!!.port
+        } ?: -1
+    }
+
+    private fun update(endpoint: MutableStateFlow<Endpoint?>, serviceType: String, port: Int) {
+        Log.d(TAG, "$serviceType: port=$port")
+        endpoint.value = if (port > 0) Endpoint(port, SystemClock.elapsedRealtime()) else null
+    }
+}
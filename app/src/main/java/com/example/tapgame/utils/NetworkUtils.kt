@@ -3,15 +3,39 @@ package com.example.tapgame.utils
 
 import android.content.Context
 import android.net.ConnectivityManager
-import android.net.LinkAddress
 import android.net.LinkProperties
 import android.net.Network
+import java.io.IOException
 import java.net.Inet4Address
+import java.net.InetSocketAddress
 import java.net.NetworkInterface
+import java.net.ServerSocket
 
 object NetworkUtils {
+
+    // Адреса интерфейсов кэшируются и сбрасываются по колбэкам ConnectivityManager,
+    // чтобы не перечислять NetworkInterface на каждый вызов
+    @Volatile
+    private var cachedAddresses: Set<String>? = null
+
+    @Volatile
+    private var cachedLocalIp: String? = null
+
+    @Volatile
+    private var callbackRegistered = false
+
+    private val networkCallback = object : ConnectivityManager.NetworkCallback() {
+        override fun onAvailable(network: Network) = invalidate()
+
+        override fun onLost(network: Network) = invalidate()
+
+        override fun onLinkPropertiesChanged(network: Network, linkProperties: LinkProperties) = invalidate()
+    }
+
     fun getLocalIpAddress(context: Context? = null): String? {
-        return try {
+        context?.let { registerCallback(it) }
+        cachedLocalIp?.let { return it }
+        val ip = try {
             // Сначала пробуем получить IP через NetworkInterface (более надежно)
             NetworkInterface.getNetworkInterfaces()?.toList()?.flatMap { it.inetAddresses.toList() }
                 ?.firstOrNull { !it.isLoopbackAddress && it is Inet4Address }
@@ -20,16 +44,70 @@ object NetworkUtils {
         } catch (e: Exception) {
             null
         }
+        if (callbackRegistered) cachedLocalIp = ip
+        return ip
+    }
+
+    /**
+     * Все адреса локальных интерфейсов устройства.
+     */
+    fun getLocalAddresses(context: Context? = null): Set<String> {
+        context?.let { registerCallback(it) }
+        cachedAddresses?.let { return it }
+        val addresses = try {
+            NetworkInterface.getNetworkInterfaces()?.asSequence()
+                ?.flatMap { it.inetAddresses.asSequence() }
+                ?.mapNotNull { it.hostAddress }
+                ?.toHashSet() ?: emptySet()
+        } catch (e: Exception) {
+            emptySet()
+        }
+        if (callbackRegistered) cachedAddresses = addresses
+        return addresses
+    }
+
+    fun isLocalAddress(hostAddress: String?, context: Context? = null): Boolean {
+        return hostAddress != null && hostAddress in getLocalAddresses(context)
+    }
+
+    /**
+     * Проверяет, что на порту уже кто-то слушает (например, adbd): занять его не получается.
+     */
+    fun isPortInUse(port: Int): Boolean = try {
+        ServerSocket().use {
+            it.bind(InetSocketAddress("127.0.0.1", port), 1)
+            false
+        }
+    } catch (e: IOException) {
+        true
+    }
+
+    fun invalidate() {
+        cachedAddresses = null
+        cachedLocalIp = null
+    }
+
+    @Synchronized
+    private fun registerCallback(context: Context) {
+        if (callbackRegistered) return
+        try {
+            val connectivityManager = context.applicationContext
+                .getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
+            connectivityManager.registerDefaultNetworkCallback(networkCallback)
+            callbackRegistered = true
+        } catch (e: Exception) {
+            // Без колбэка кэш не используется, адреса читаются каждый раз
+        }
     }
 
     private fun getActiveNetworkIp(context: Context?): String? {
         if (context == null) return null
-        
+
         return try {
             val connectivityManager = context.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
             val network = connectivityManager.activeNetwork ?: return null
             val linkProperties = connectivityManager.getLinkProperties(network) ?: return null
-            
+
             linkProperties.linkAddresses.firstOrNull {
                 it.address is Inet4Address
             }?.address?.hostAddress
@@ -37,4 +115,4 @@ object NetworkUtils {
             null
         }
     }
-}
\ No newline at end of file
+}
@@ -6,11 +6,10 @@ import android.content.Context
 import android.util.Log
 import com.example.tapgame.data.SettingsDataStore
 import com.example.tapgame.server.MyPersistentServer
-import kotlinx.coroutines.delay
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.withContext
-import moe.shizuku.manager.adb.AdbClient
+import moe.shizuku.manager.adb.AdbConnectionPool
 import moe.shizuku.manager.adb.AdbKey
 import moe.shizuku.manager.adb.PreferenceAdbKeyStore
 import java.net.ConnectException
@@ -48,11 +47,8 @@ object PermissionChecker {
 
         try {
             val keyStore = PreferenceAdbKeyStore(context.getSharedPreferences("adb_key", Context.MODE_PRIVATE))
-            val key = AdbKey(keyStore, "TapGameKey")
-    
-            // Добавляем задержку перед проверкой
-            delay(1000)
-    
+            val key = AdbKey.obtain(keyStore, "TapGameKey")
+
             val localIp = NetworkUtils.getLocalIpAddress(context) ?: run {
                 Log.w("PermissionChecker", "Failed to get local IP, using fallback")
                 "127.0.0.1"
@@ -60,14 +56,11 @@ object PermissionChecker {
             
             Log.d("PermissionChecker", "Checking active permission with IP: $localIp, port: $adbConnectPort")
     
-            val adbClient = AdbClient(localIp, adbConnectPort, key)
-            adbClient.connect()
-    
-            val result = adbClient.shell("echo hello")
-            adbClient.close()
+            // Соединение берётся из пула и не закрывается: следующая проверка переиспользует его
+            val result = AdbConnectionPool.use(localIp, adbConnectPort, key) { it.shellV2("true") }
     
-            val isActive = result.trim() == "hello"
-            Log.d("PermissionChecker", "ADB connection test result: $isActive, shell output: \"$result\"")
+            val isActive = result.isSuccess
+            Log.d("PermissionChecker", "ADB connection test result: $isActive, exit code: ${result.exitCode}")
             isActive
         } catch (e: ConnectException) {
             Log.w("PermissionChecker", "ConnectException: ADB server not reachable or connection refused. Active permission not found.")
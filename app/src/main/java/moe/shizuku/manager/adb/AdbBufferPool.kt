@@ -0,0 +1,46 @@
+package moe.shizuku.manager.adb
+
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Size-classed pool of payload buffers lent out by [AdbMessageCodec].
+ *
+ * A lent buffer is usually larger than the payload it holds, so callers must always go
+ * through [AdbMessage.data_length] and hand the buffer back with [AdbMessage.release].
+ */
+object AdbBufferPool {
+
+    private val SIZES = intArrayOf(4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024)
+    private val LIMITS = intArrayOf(32, 16, 8, 4, 2)
+
+    private val free = Array(SIZES.size) { ConcurrentLinkedQueue<ByteArray>() }
+    private val counts = Array(SIZES.size) { AtomicInteger() }
+
+    val maxPooledSize get() = SIZES.last()
+
+    fun acquire(size: Int): ByteArray {
+        val index = classOf(size)
+        if (index < 0) return ByteArray(size)
+        val buffer = free[index].poll() ?: return ByteArray(SIZES[index])
+        counts[index].decrementAndGet()
+        return buffer
+    }
+
+    fun release(buffer: ByteArray) {
+        val index = SIZES.indexOf(buffer.size)
+        if (index < 0) return
+        if (counts[index].incrementAndGet() > LIMITS[index]) {
+            counts[index].decrementAndGet()
+            return
+        }
+        free[index].offer(buffer)
+    }
+
+    private fun classOf(size: Int): Int {
+        for (i in SIZES.indices) {
+            if (size <= SIZES[i]) return i
+        }
+        return -1
+    }
+}
@@ -2,12 +2,17 @@ package moe.shizuku.manager.adb
 
 import android.os.Build
 import android.util.Log
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.runInterruptible
+import java.io.ByteArrayOutputStream
 import java.io.Closeable
-import java.io.DataInputStream
-import java.io.DataOutputStream
+import java.io.InputStream
 import java.net.Socket
 import java.nio.ByteBuffer
-import java.nio.ByteOrder
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
 import javax.net.ssl.SSLSocket
 
 
@@ -16,26 +21,62 @@ private const val TAG = "AdbClient"
 class AdbClient(private val host: String, private val port: Int, private val key: AdbKey) : Closeable {
 
     private lateinit var socket: Socket
-    private lateinit var plainInputStream: DataInputStream
-    private lateinit var plainOutputStream: DataOutputStream
+    private lateinit var plainCodec: AdbMessageCodec
 
     private var useTls = false
 
     private lateinit var tlsSocket: SSLSocket
-    private lateinit var tlsInputStream: DataInputStream
-    private lateinit var tlsOutputStream: DataOutputStream
+    private lateinit var tlsCodec: AdbMessageCodec
 
-    private val inputStream get() = if (useTls) tlsInputStream else plainInputStream
-    private val outputStream get() = if (useTls) tlsOutputStream else plainOutputStream
+    private val codec get() = if (useTls) tlsCodec else plainCodec
+
+    private val writeLock = Any()
+    private val ackBuffer = ByteArray(4)
+    private val streams = ConcurrentHashMap<Int, AdbStream>()
+    private val nextLocalId = AtomicInteger(1)
+    @Volatile
+    private var readerThread: Thread? = null
+
+    @Volatile
+    private var closed = false
+
+    val isConnected get() = !closed && readerThread?.isAlive == true
+
+    /**
+     * Largest payload a single message may carry on this connection, negotiated as the smaller
+     * of both sides' `A_CNXN` max data.
+     */
+    var maxPayload = AdbProtocol.MAX_PAYLOAD_V1
+        private set
+
+    /**
+     * Protocol version reported by the device.
+     */
+    var protocolVersion = AdbProtocol.A_VERSION_MIN
+        private set
+
+    /**
+     * Features advertised by the device in its `A_CNXN` banner.
+     */
+    var features: Set<String> = emptySet()
+        private set
+
+    /**
+     * Remaining `key=value` properties of the device banner (`ro.product.model`, ...).
+     */
+    var deviceProperties: Map<String, String> = emptyMap()
+        private set
+
+    fun hasFeature(feature: String) = feature in features
 
     fun connect() {
         Log.d(TAG, "Connecting to $host:$port")
         socket = Socket(host, port)
         socket.tcpNoDelay = true
-        plainInputStream = DataInputStream(socket.getInputStream())
-        plainOutputStream = DataOutputStream(socket.getOutputStream())
+        socket.keepAlive = true
+        plainCodec = AdbMessageCodec(socket.getInputStream(), socket.getOutputStream())
 
-        write(AdbProtocol.A_CNXN, AdbProtocol.A_VERSION, AdbProtocol.A_MAXDATA, "host::")
+        write(AdbProtocol.A_CNXN, AdbProtocol.A_VERSION, AdbProtocol.A_MAXDATA, HOST_BANNER)
 
         var message = read()
         Log.d(TAG, "Initial response: ${message.toStringShort()}")
@@ -52,190 +93,276 @@ class AdbClient(private val host: String, private val port: Int, private val key
             tlsSocket.startHandshake()
             Log.d(TAG, "Handshake succeeded.")
 
-            tlsInputStream = DataInputStream(tlsSocket.inputStream)
-            tlsOutputStream = DataOutputStream(tlsSocket.outputStream)
+            tlsCodec = AdbMessageCodec(tlsSocket.inputStream, tlsSocket.outputStream)
             useTls = true
 
+            message.release()
             message = read()
         } else if (message.command == AdbProtocol.A_AUTH) {
             if (message.command != AdbProtocol.A_AUTH && message.arg0 != AdbProtocol.ADB_AUTH_TOKEN) error("not A_AUTH ADB_AUTH_TOKEN")
-            write(AdbProtocol.A_AUTH, AdbProtocol.ADB_AUTH_SIGNATURE, 0, key.sign(message.data))
+            write(AdbProtocol.A_AUTH, AdbProtocol.ADB_AUTH_SIGNATURE, 0, key.sign(message.payload()))
 
+            message.release()
             message = read()
             if (message.command != AdbProtocol.A_CNXN) {
                 write(AdbProtocol.A_AUTH, AdbProtocol.ADB_AUTH_RSAPUBLICKEY, 0, key.adbPublicKey)
+                message.release()
                 message = read()
             }
         }
 
-        if (message.command != AdbProtocol.A_CNXN) error("not A_CNXN")
+        if (message.command != AdbProtocol.A_CNXN) {
+            message.release()
+            error("not A_CNXN")
+        }
+        onConnected(message)
+        message.release()
+
+        startReader()
     }
 
-    fun shellCommand(command: String, listener: ((ByteArray) -> Unit)?) {
-        val localId = 1
-        write(AdbProtocol.A_OPEN, localId, 0, "shell:$command")
+    private fun onConnected(message: AdbMessage) {
+        protocolVersion = minOf(message.arg0, AdbProtocol.A_VERSION)
+        maxPayload = minOf(message.arg1, AdbProtocol.A_MAXDATA)
+        codec.sendChecksum = protocolVersion < AdbProtocol.A_VERSION_SKIP_CHECKSUM
 
-        var message = read()
-        when (message.command) {
-            AdbProtocol.A_OKAY -> {
-                while (true) {
-                    message = read()
-                    val remoteId = message.arg0
-                    if (message.command == AdbProtocol.A_WRTE) {
-                        if (message.data_length > 0) {
-                            listener?.invoke(message.data!!)
-                        }
-                        write(AdbProtocol.A_OKAY, localId, remoteId)
-                    } else if (message.command == AdbProtocol.A_CLSE) {
-                        write(AdbProtocol.A_CLSE, localId, remoteId)
-                        break
-                    } else {
-                        error("not A_WRTE or A_CLSE")
-                    }
+        // device::ro.product.name=...;ro.product.model=...;features=shell_v2,cmd,...
+        val banner = String(message.payload()).trimEnd('\u0000')
+        val properties = HashMap<String, String>()
+        for (entry in banner.substringAfter("::").split(';')) {
+            val separator = entry.indexOf('=')
+            if (separator <= 0) continue
+            properties[entry.substring(0, separator)] = entry.substring(separator + 1)
+        }
+        features = properties.remove("features")?.split(',')?.filter { it.isNotEmpty() }?.toSet() ?: emptySet()
+        deviceProperties = properties
+
+        Log.d(TAG, "Connected: version=${Integer.toHexString(protocolVersion)}, maxPayload=$maxPayload, features=$features")
+    }
+
+    /**
+     * Opens a new stream to [destination] (e.g. `shell:ls`) on this connection.
+     * Streams are independent, so several of them may be open at the same time.
+     */
+    fun open(destination: String): AdbStream {
+        if (closed) adbError("connection closed")
+        val localId = nextLocalId.getAndIncrement()
+        val delayedAck = hasFeature(AdbProtocol.FEATURE_DELAYED_ACK)
+        val stream = AdbStream(this, localId, delayedAck)
+        streams[localId] = stream
+        try {
+            write(AdbProtocol.A_OPEN, localId, if (delayedAck) AdbProtocol.DELAYED_ACK_WINDOW else 0, destination)
+            stream.awaitOpen()
+        } catch (e: Throwable) {
+            streams.remove(localId)
+            throw e
+        }
+        return stream
+    }
+
+    fun shellCommand(command: String, listener: ((ByteArray) -> Unit)?) {
+        open("shell:$command").use { stream ->
+            while (true) {
+                val data = stream.read() ?: break
+                if (data.isNotEmpty()) {
+                    listener?.invoke(data)
                 }
             }
-            AdbProtocol.A_CLSE -> {
-                val remoteId = message.arg0
-                write(AdbProtocol.A_CLSE, localId, remoteId)
-            }
-            else -> {
-                error("not A_OKAY or A_CLSE")
-            }
         }
     }
-    
+
     fun shell(command: String): String {
-        val localId = 2 // Используем другой ID, чтобы не пересекаться
-        val output = StringBuilder()
-        
+        val output = ByteArrayOutputStream()
+
         try {
-            write(AdbProtocol.A_OPEN, localId, 0, "shell:$command")
             Log.d(TAG, "Executing shell command: $command")
-    
-            var message = read()
-            when (message.command) {
-                AdbProtocol.A_OKAY -> {
-                    Log.d(TAG, "Shell session opened successfully")
-                    while (true) {
-                        message = read()
-                        Log.d(TAG, "Shell message received: ${message.toStringShort()}")
-                        
-                        val remoteId = message.arg0
-                        when (message.command) {
-                            AdbProtocol.A_WRTE -> {
-                                if (message.data_length > 0) {
-                                    val dataStr = String(message.data!!, Charsets.UTF_8)
-                                    Log.d(TAG, "Shell output: $dataStr")
-                                    output.append(dataStr)
-                                }
-                                write(AdbProtocol.A_OKAY, localId, remoteId)
-                            }
-                            AdbProtocol.A_CLSE -> {
-                                Log.d(TAG, "Shell session closed by remote")
-                                write(AdbProtocol.A_CLSE, localId, remoteId)
-                                break
-                            }
-                            else -> {
-                                Log.e(TAG, "Unexpected command during shell session: ${message.command}")
-                                error("not A_WRTE or A_CLSE")
-                            }
-                        }
-                    }
-                }
-                AdbProtocol.A_CLSE -> {
-                    Log.d(TAG, "Shell session immediately closed by remote")
-                    val remoteId = message.arg0
-                    write(AdbProtocol.A_CLSE, localId, remoteId)
-                }
-                else -> {
-                    Log.e(TAG, "Unexpected initial response to shell command: ${message.command}")
-                    error("not A_OKAY or A_CLSE")
+            open("shell:$command").use { stream ->
+                while (stream.read { data, offset, length -> output.write(data, offset, length) }) {
                 }
             }
         } catch (e: Exception) {
             Log.e(TAG, "Shell command '$command' failed", e)
-            throw e // Можно заменить на return "" если нужно подавить ошибки
+            throw e
         }
-        
-        Log.d(TAG, "Shell command completed, output length: ${output.length}")
-        return output.toString()
+
+        Log.d(TAG, "Shell command completed, output length: ${output.size()}")
+        return output.toString(Charsets.UTF_8.name())
     }
-    /*
-    fun shell(command: String): String {
-        val localId = 2 // Используем другой ID, чтобы не пересекаться
-        write(AdbProtocol.A_OPEN, localId, 0, "shell:$command")
 
-        val output = StringBuilder()
-        var message = read()
+    /**
+     * Runs [command] through the `exec:` service, which does not allocate a pty and
+     * returns the raw, unmangled output.
+     */
+    fun exec(command: String): ByteArray {
+        val output = ByteArrayOutputStream()
+        open("exec:$command").use { stream ->
+            while (stream.read { data, offset, length -> output.write(data, offset, length) }) {
+            }
+        }
+        return output.toByteArray()
+    }
+
+    /**
+     * Streams the output of `shell:[command]` chunk by chunk. Each [ByteBuffer] is only valid
+     * until the collector returns; the next chunk is not requested from the device before that.
+     */
+    fun shellFlow(command: String): Flow<ByteBuffer> = streamFlow("shell:$command")
+
+    fun execFlow(command: String): Flow<ByteBuffer> = streamFlow("exec:$command")
+
+    /**
+     * Opens `shell:[command]` as an [InputStream]; closing it closes the stream.
+     */
+    fun shellInputStream(command: String): InputStream = open("shell:$command").inputStream()
+
+    fun execInputStream(command: String): InputStream = open("exec:$command").inputStream()
+
+    // No flowOn here: a buffered flow would let done() recycle and ack a chunk before the
+    // collector has read it, so only the blocking calls move to the IO dispatcher.
+    private fun streamFlow(destination: String): Flow<ByteBuffer> = flow {
+        runInterruptible(Dispatchers.IO) { open(destination) }.use { stream ->
+            while (true) {
+                val message = runInterruptible(Dispatchers.IO) { stream.take() } ?: break
+                try {
+                    emit(ByteBuffer.wrap(message.data ?: ByteArray(0), 0, message.data_length).asReadOnlyBuffer())
+                } finally {
+                    stream.done(message)
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens [command] with the shell v2 protocol, which keeps stdout and stderr apart and
+     * reports the exit status. [pty] allocates a terminal for interactive use.
+     */
+    fun openShell(command: String, pty: Boolean = false): AdbShellStream {
+        val type = if (pty) "pty" else "raw"
+        return AdbShellStream(open("shell,v2,$type:$command"), maxPayload)
+    }
+
+    /**
+     * Runs [command] to completion with the shell v2 protocol and returns its exit code
+     * together with the separated output.
+     */
+    fun shellV2(command: String): AdbShellResult {
+        if (hasFeature(AdbProtocol.FEATURE_SHELL_V2)) {
+            return openShell(command).use { AdbShellStream.collect(it) }
+        }
+
+        // Legacy adbd: no separate stderr, so recover the exit code from a trailing marker.
+        val output = shell("$command; echo \"\n$EXIT_MARKER\$?\"")
+        val index = output.lastIndexOf("\n$EXIT_MARKER")
+        if (index < 0) adbError("missing exit status in shell output")
+        val exitCode = output.substring(index + EXIT_MARKER.length + 1).trim().toIntOrNull() ?: -1
+        return AdbShellResult(exitCode, output.substring(0, index).toByteArray(), ByteArray(0))
+    }
+
+    /**
+     * Opens the `sync:` service for file transfer on this connection.
+     */
+    fun sync(): AdbSyncClient = AdbSyncClient(open("sync:"), maxPayload)
+
+    private fun startReader() {
+        readerThread = Thread({
+            try {
+                while (!closed) {
+                    dispatch(read())
+                }
+            } catch (e: Throwable) {
+                if (!closed) Log.w(TAG, "Reader stopped", e)
+                failAll(e)
+            }
+        }, "AdbClient-$host:$port").apply {
+            isDaemon = true
+            start()
+        }
+    }
+
+    private fun dispatch(message: AdbMessage) {
+        val stream = streams[message.arg1]
+        val credit = if (message.command == AdbProtocol.A_OKAY && message.data_length >= 4) {
+            val data = message.data!!
+            (data[0].toInt() and 0xFF) or
+                    ((data[1].toInt() and 0xFF) shl 8) or
+                    ((data[2].toInt() and 0xFF) shl 16) or
+                    ((data[3].toInt() and 0xFF) shl 24)
+        } else 0
+        if (message.command != AdbProtocol.A_WRTE || stream == null) {
+            message.release()
+        }
         when (message.command) {
-            AdbProtocol.A_OKAY -> {
-                while (true) {
-                    message = read()
-                    Log.d("AdbClient", "Shell response: ${String(message.data!!, Charsets.UTF_8)}")
-                    val remoteId = message.arg0
-                    if (message.command == AdbProtocol.A_WRTE) {
-                        if (message.data_length > 0) {
-                            // Добавляем полученные данные в строку
-                            output.append(String(message.data!!, Charsets.UTF_8))
-                        }
-                        write(AdbProtocol.A_OKAY, localId, remoteId)
-                    } else if (message.command == AdbProtocol.A_CLSE) {
-                        write(AdbProtocol.A_CLSE, localId, remoteId)
-                        break
-                    } else {
-                        error("not A_WRTE or A_CLSE")
-                    }
+            AdbProtocol.A_OKAY -> stream?.onOkay(message.arg0, credit)
+            AdbProtocol.A_WRTE -> {
+                if (stream != null) {
+                    stream.onWrite(message)
+                } else {
+                    write(AdbProtocol.A_CLSE, message.arg1, message.arg0)
                 }
             }
             AdbProtocol.A_CLSE -> {
-                val remoteId = message.arg0
-                write(AdbProtocol.A_CLSE, localId, remoteId)
-            }
-            else -> {
-                error("not A_OKAY or A_CLSE")
+                if (stream != null) {
+                    streams.remove(message.arg1)
+                    if (!stream.isClosed) {
+                        stream.onClose(message.arg0)
+                        write(AdbProtocol.A_CLSE, message.arg1, message.arg0)
+                    }
+                }
             }
+            else -> Log.w(TAG, "Unexpected message ${message.toStringShort()}")
         }
-        return output.toString()
-    }*/
-    private fun write(command: Int, arg0: Int, arg1: Int, data: ByteArray? = null) = write(AdbMessage(command, arg0, arg1, data))
-    private fun write(command: Int, arg0: Int, arg1: Int, data: String) = write(AdbMessage(command, arg0, arg1, data))
-    private fun write(message: AdbMessage) {
-        outputStream.write(message.toByteArray())
-        outputStream.flush()
-        Log.d(TAG, "write ${message.toStringShort()}")
     }
 
-    private fun read(): AdbMessage {
-        val buffer = ByteBuffer.allocate(AdbMessage.HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN)
-
-        inputStream.readFully(buffer.array(), 0, 24)
-
-        val command = buffer.int
-        val arg0 = buffer.int
-        val arg1 = buffer.int
-        val dataLength = buffer.int
-        val checksum = buffer.int
-        val magic = buffer.int
-        val data: ByteArray?
-        if (dataLength >= 0) {
-            data = ByteArray(dataLength)
-            inputStream.readFully(data, 0, dataLength)
-        } else {
-            data = null
+    private fun failAll(e: Throwable) {
+        closed = true
+        val pending = streams.values.toList()
+        streams.clear()
+        pending.forEach { it.onFailure(e) }
+    }
+
+    internal fun release(stream: AdbStream) {
+        streams.remove(stream.localId, stream)
+    }
+
+    internal fun write(command: Int, arg0: Int, arg1: Int, data: ByteArray? = null, offset: Int = 0, length: Int = data?.size ?: 0) {
+        synchronized(writeLock) {
+            codec.write(command, arg0, arg1, data, offset, length)
         }
-        val message = AdbMessage(command, arg0, arg1, dataLength, checksum, magic, data)
-        message.validateOrThrow()
-        Log.d(TAG, "read ${message.toStringShort()}")
-        return message
     }
 
-    override fun close() {
-        try {
-            plainInputStream.close()
-        } catch (e: Throwable) {
+    /**
+     * Acknowledges [ackedBytes] received on a stream. With delayed_ack the count is sent as
+     * the `A_OKAY` payload and becomes the remote's new send credit.
+     */
+    internal fun writeOkay(localId: Int, remoteId: Int, ackedBytes: Int) {
+        if (!hasFeature(AdbProtocol.FEATURE_DELAYED_ACK)) {
+            write(AdbProtocol.A_OKAY, localId, remoteId)
+            return
+        }
+        synchronized(writeLock) {
+            ackBuffer[0] = ackedBytes.toByte()
+            ackBuffer[1] = (ackedBytes shr 8).toByte()
+            ackBuffer[2] = (ackedBytes shr 16).toByte()
+            ackBuffer[3] = (ackedBytes shr 24).toByte()
+            codec.write(AdbProtocol.A_OKAY, localId, remoteId, ackBuffer)
         }
+    }
+
+    internal fun write(command: Int, arg0: Int, arg1: Int, data: String) = write(command, arg0, arg1, "$data\u0000".toByteArray())
+
+    private fun read(): AdbMessage = codec.read()
+
+    companion object {
+
+        private const val EXIT_MARKER = "x-adb-exit:"
+
+        private val HOST_BANNER = "host::features=${AdbProtocol.HOST_FEATURES.joinToString(",")}"
+    }
+
+    override fun close() {
+        closed = true
         try {
-            plainOutputStream.close()
+            plainCodec.close()
         } catch (e: Throwable) {
         }
         try {
@@ -245,11 +372,7 @@ class AdbClient(private val host: String, private val port: Int, private val key
 
         if (useTls) {
             try {
-                tlsInputStream.close()
-            } catch (e: Throwable) {
-            }
-            try {
-                tlsOutputStream.close()
+                tlsCodec.close()
             } catch (e: Throwable) {
             }
             try {
@@ -257,5 +380,7 @@ class AdbClient(private val host: String, private val port: Int, private val key
             } catch (e: Exception) {
             }
         }
+
+        failAll(AdbException("connection closed"))
     }
 }
\ No newline at end of file
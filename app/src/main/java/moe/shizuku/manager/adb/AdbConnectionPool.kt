@@ -0,0 +1,184 @@
+package moe.shizuku.manager.adb
+
+import android.os.SystemClock
+import android.util.Log
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runInterruptible
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+import kotlinx.coroutines.withTimeoutOrNull
+import java.io.IOException
+import java.util.concurrent.ConcurrentHashMap
+
+private const val TAG = "AdbConnectionPool"
+
+/**
+ * Process-wide pool of authenticated [AdbClient] connections keyed by (host, port).
+ *
+ * Since [AdbClient] multiplexes streams, one connection per endpoint is shared by every
+ * caller. Clients handed out by the pool must not be closed by the caller; use [evict]
+ * to drop a connection that is known to be bad.
+ *
+ * Entries stay in the map once created, so every caller of an endpoint serializes on the same
+ * [Entry.mutex] and a reconnected client is never stored in an entry nobody can reach.
+ */
+object AdbConnectionPool {
+
+    private const val IDLE_CHECK_INTERVAL = 15_000L
+    private const val KEEPALIVE_INTERVAL = 30_000L
+    private const val PING_TIMEOUT = 3_000L
+    private const val MAX_CONNECT_ATTEMPTS = 3
+    private const val INITIAL_BACKOFF = 100L
+
+    private data class Endpoint(val host: String, val port: Int)
+
+    private class Entry {
+        val mutex = Mutex()
+        var client: AdbClient? = null
+        var lastUsed = 0L
+    }
+
+    private val entries = ConcurrentHashMap<Endpoint, Entry>()
+    private val scope = CoroutineScope(Dispatchers.IO + SupervisorJob())
+    private var keepAliveJob: Job? = null
+
+    /**
+     * Returns a connected client for [host]:[port], reusing the pooled connection when it is
+     * still healthy and reconnecting with a short exponential backoff otherwise.
+     */
+    suspend fun acquire(host: String, port: Int, key: AdbKey): AdbClient = withContext(Dispatchers.IO) {
+        val entry = entries.getOrPut(Endpoint(host, port)) { Entry() }
+        entry.mutex.withLock {
+            val current = entry.client
+            if (current != null && isHealthy(current, entry)) {
+                entry.lastUsed = SystemClock.elapsedRealtime()
+                return@withLock current
+            }
+            current?.close()
+            entry.client = null
+
+            val client = connectWithBackoff(host, port, key)
+            entry.client = client
+            entry.lastUsed = SystemClock.elapsedRealtime()
+            ensureKeepAlive()
+            client
+        }
+    }
+
+    /**
+     * Runs [block] with a pooled client. The connection is evicted if it breaks while in use.
+     */
+    suspend fun <T> use(host: String, port: Int, key: AdbKey, block: suspend (AdbClient) -> T): T {
+        val client = acquire(host, port, key)
+        try {
+            return block(client)
+        } catch (e: Exception) {
+            if (!client.isConnected) evict(host, port, client)
+            throw e
+        }
+    }
+
+    /**
+     * Closes [client] if it is still the pooled connection for [host]:[port]; a connection that
+     * has already replaced it is left alone.
+     */
+    suspend fun evict(host: String, port: Int, client: AdbClient) {
+        val entry = entries[Endpoint(host, port)] ?: return
+        entry.mutex.withLock {
+            if (entry.client === client) {
+                client.close()
+                entry.client = null
+            }
+        }
+    }
+
+    suspend fun evictAll() {
+        for (entry in entries.values) {
+            entry.mutex.withLock {
+                entry.client?.close()
+                entry.client = null
+            }
+        }
+    }
+
+    private suspend fun connectWithBackoff(host: String, port: Int, key: AdbKey): AdbClient {
+        var backoff = INITIAL_BACKOFF
+        var lastError: Exception? = null
+        for (attempt in 1..MAX_CONNECT_ATTEMPTS) {
+            val client = AdbClient(host, port, key)
+            try {
+                runInterruptible { client.connect() }
+                Log.d(TAG, "Connected to $host:$port (attempt $attempt)")
+                return client
+            } catch (e: Exception) {
+                client.close()
+                lastError = e
+                Log.w(TAG, "Connect to $host:$port failed (attempt $attempt): ${e.message}")
+            }
+            if (attempt < MAX_CONNECT_ATTEMPTS) {
+                delay(backoff)
+                backoff *= 2
+            }
+        }
+        throw lastError!!
+    }
+
+    private suspend fun isHealthy(client: AdbClient, entry: Entry): Boolean {
+        if (!client.isConnected) return false
+        if (SystemClock.elapsedRealtime() - entry.lastUsed < IDLE_CHECK_INTERVAL) return true
+        return ping(client)
+    }
+
+    private suspend fun ping(client: AdbClient): Boolean {
+        return withTimeoutOrNull(PING_TIMEOUT) {
+            try {
+                runInterruptible { client.exec("true") }
+                true
+            } catch (e: IOException) {
+                false
+            } catch (e: AdbException) {
+                false
+            }
+        } ?: false
+    }
+
+    @Synchronized
+    private fun ensureKeepAlive() {
+        if (keepAliveJob?.isActive == true) return
+        keepAliveJob = scope.launch {
+            while (isActive && !stopKeepAliveIfIdle()) {
+                delay(KEEPALIVE_INTERVAL)
+                for ((endpoint, entry) in entries) {
+                    if (!entry.mutex.tryLock()) continue
+                    try {
+                        val client = entry.client ?: continue
+                        if (!client.isConnected || !ping(client)) {
+                            Log.d(TAG, "Dropping dead connection to ${endpoint.host}:${endpoint.port}")
+                            client.close()
+                            entry.client = null
+                        }
+                    } finally {
+                        entry.mutex.unlock()
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Ends the keep-alive loop once no entry holds a client; [ensureKeepAlive] starts it again.
+     */
+    @Synchronized
+    private fun stopKeepAliveIfIdle(): Boolean {
+        if (entries.values.any { it.client != null }) return false
+        keepAliveJob = null
+        return true
+    }
+}
@@ -13,7 +13,6 @@ import org.bouncycastle.asn1.x500.X500Name
 import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo
 import org.bouncycastle.cert.X509v3CertificateBuilder
 import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder
-import com.example.tapgame.rikka.unsafe.unsafeLazy
 import java.io.ByteArrayInputStream
 import java.math.BigInteger
 import java.net.Socket
@@ -70,20 +69,40 @@ class AdbKey(private val adbKeyStore: AdbKeyStore, name: String) {
                 -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, 0x00,
                 0x30, 0x21, 0x30, 0x09, 0x06, 0x05, 0x2b, 0x0e, 0x03, 0x02, 0x1a, 0x05, 0x00,
                 0x04, 0x14)
+
+        private const val SESSION_CACHE_SIZE = 16
+        private const val SESSION_TIMEOUT_SECONDS = 24 * 60 * 60
+
+        private val instances = HashMap<Pair<AdbKeyStore, String>, AdbKey>()
+
+        /**
+         * Returns the process-wide key for [adbKeyStore] and [name]. The private key is unwrapped
+         * through AndroidKeyStore only the first time, and every later connection shares the same
+         * [sslContext] so TLS sessions to the same adbd can be resumed.
+         *
+         * Stores are compared with `equals`, so a store created again for the same storage
+         * should be equal to the previous one, as [PreferenceAdbKeyStore] is.
+         */
+        @JvmStatic
+        fun obtain(adbKeyStore: AdbKeyStore, name: String): AdbKey = synchronized(instances) {
+            instances.getOrPut(adbKeyStore to name) { AdbKey(adbKeyStore, name) }
+        }
     }
 
     private val encryptionKey: Key
 
     private val privateKey: RSAPrivateKey
     private val publicKey: RSAPublicKey
-    private val certificate: X509Certificate
 
     init {
         this.encryptionKey = getOrCreateEncryptionKey() ?: error("Failed to generate encryption key with AndroidKeyManager.")
 
         this.privateKey = getOrCreatePrivateKey()
         this.publicKey = KeyFactory.getInstance("RSA").generatePublic(RSAPublicKeySpec(privateKey.modulus, RSAKeyGenParameterSpec.F4)) as RSAPublicKey
+    }
 
+    // Only TLS connections need the certificate; legacy A_AUTH never builds it.
+    private val certificate: X509Certificate by lazy {
         val signer = JcaContentSignerBuilder("SHA256withRSA").build(privateKey)
         val x509Certificate = X509v3CertificateBuilder(X500Name("CN=00"),
                 BigInteger.ONE,
@@ -93,13 +112,11 @@ class AdbKey(private val adbKeyStore: AdbKeyStore, name: String) {
                 X500Name("CN=00"),
                 SubjectPublicKeyInfo.getInstance(publicKey.encoded)
         ).build(signer)
-        this.certificate = CertificateFactory.getInstance("X.509")
+        CertificateFactory.getInstance("X.509")
                 .generateCertificate(ByteArrayInputStream(x509Certificate.encoded)) as X509Certificate
-
-        Log.d(TAG, privateKey.toString())
     }
 
-    val adbPublicKey: ByteArray by unsafeLazy {
+    val adbPublicKey: ByteArray by lazy {
         publicKey.adbEncoded(name)
     }
 
@@ -251,9 +268,14 @@ class AdbKey(private val adbKeyStore: AdbKeyStore, name: String) {
             }
 
     @delegate:RequiresApi(Build.VERSION_CODES.R)
-    val sslContext: SSLContext by unsafeLazy {
+    val sslContext: SSLContext by lazy {
         val sslContext = SSLContext.getInstance("TLSv1.3")
         sslContext.init(arrayOf(keyManager), arrayOf(trustManager), SecureRandom())
+        // Sessions are keyed by the host and port passed to createSocket().
+        sslContext.clientSessionContext.apply {
+            sessionCacheSize = SESSION_CACHE_SIZE
+            sessionTimeout = SESSION_TIMEOUT_SECONDS
+        }
         sslContext
     }
 }
@@ -277,6 +299,15 @@ class PreferenceAdbKeyStore(private val preference: SharedPreferences) : AdbKeyS
         if (!preference.contains(preferenceKey)) return null
         return Base64.decode(preference.getString(preferenceKey, null), Base64.NO_WRAP)
     }
+
+    // getSharedPreferences() returns the same instance for a file, so stores of one file are equal
+    override fun equals(other: Any?): Boolean {
+        return other is PreferenceAdbKeyStore && other.preference === preference
+    }
+
+    override fun hashCode(): Int {
+        return System.identityHashCode(preference)
+    }
 }
 
 const val ANDROID_PUBKEY_MODULUS_SIZE = 2048 / 8
@@ -7,10 +7,7 @@ import android.os.Build
 import android.util.Log
 import androidx.annotation.RequiresApi
 import androidx.lifecycle.Observer
-import java.io.IOException
-import java.net.InetSocketAddress
-import java.net.NetworkInterface
-import java.net.ServerSocket
+import com.example.tapgame.utils.NetworkUtils
 
 @RequiresApi(Build.VERSION_CODES.R)
 class AdbMdns(
@@ -18,6 +15,8 @@ class AdbMdns(
     private val observer: Observer<Int>
 ) {
 
+    private val context = context.applicationContext
+
     private var registered = false
     private var running = false
     private var serviceName: String? = null
@@ -57,29 +56,14 @@ class AdbMdns(
     }
 
     private fun onServiceResolved(resolvedService: NsdServiceInfo) {
-        if (running && NetworkInterface.getNetworkInterfaces()
-                .asSequence()
-                .any { networkInterface ->
-                    networkInterface.inetAddresses
-                        .asSequence()
-                        .any { resolvedService.host.hostAddress == it.hostAddress }
-                }
-            && isPortAvailable(resolvedService.port)
+        if (running && NetworkUtils.isLocalAddress(resolvedService.host.hostAddress, context)
+            && NetworkUtils.isPortInUse(resolvedService.port)
         ) {
             serviceName = resolvedService.serviceName
             observer.onChanged(resolvedService.port)
         }
     }
 
-    private fun isPortAvailable(port: Int) = try {
-        ServerSocket().use {
-            it.bind(InetSocketAddress("127.0.0.1", port), 1)
-            false
-        }
-    } catch (e: IOException) {
-        true
-    }
-
     internal class DiscoveryListener(private val adbMdns: AdbMdns) : NsdManager.DiscoveryListener {
         override fun onDiscoveryStarted(serviceType: String) {
             Log.v(TAG, "onDiscoveryStarted: $serviceType")
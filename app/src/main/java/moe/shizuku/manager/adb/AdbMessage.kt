@@ -19,7 +19,8 @@ class AdbMessage(
         val data_length: Int,
         val data_crc32: Int,
         val magic: Int,
-        val data: ByteArray?
+        val data: ByteArray?,
+        private val pooled: Boolean = false
 ) {
 
     constructor(command: Int, arg0: Int, arg1: Int, data: String) : this(
@@ -33,16 +34,33 @@ class AdbMessage(
             arg0,
             arg1,
             data?.size ?: 0,
-            crc32(data),
+            crc32(data, 0, data?.size ?: 0),
             (command.toLong() xor 0xFFFFFFFF).toInt(),
             data)
 
     fun validate(): Boolean {
         if (command != magic xor -0x1) return false
-        if (data_length != 0 && crc32(data) != data_crc32) return false
+        if (data_length != 0 && crc32(data, 0, data_length) != data_crc32) return false
         return true
     }
 
+    /**
+     * Returns the payload as an array of exactly [data_length] bytes, copying it out of a
+     * pooled buffer if needed.
+     */
+    fun payload(): ByteArray {
+        val data = data ?: return ByteArray(0)
+        return if (data.size == data_length) data else data.copyOf(data_length)
+    }
+
+    /**
+     * Hands a pooled payload buffer back to [AdbBufferPool]. The message must not be used
+     * afterwards.
+     */
+    fun release() {
+        if (pooled && data != null) AdbBufferPool.release(data)
+    }
+
     fun validateOrThrow() {
         if (!validate()) throw IllegalArgumentException("bad message ${this.toStringShort()}")
     }
@@ -58,7 +76,7 @@ class AdbMessage(
             putInt(data_crc32)
             putInt(magic)
             if (data != null) {
-                put(data)
+                put(data, 0, data_length)
             }
         }.array()
     }
@@ -77,7 +95,7 @@ class AdbMessage(
         if (magic != other.magic) return false
         if (data != null) {
             if (other.data == null) return false
-            if (!data.contentEquals(other.data)) return false
+            if (!payload().contentEquals(other.payload())) return false
         } else if (other.data != null) return false
 
         return true
@@ -90,7 +108,7 @@ class AdbMessage(
         result = 31 * result + data_length
         result = 31 * result + data_crc32
         result = 31 * result + magic
-        result = 31 * result + (data?.contentHashCode() ?: 0)
+        result = 31 * result + (data?.let { payload().contentHashCode() } ?: 0)
         return result
     }
 
@@ -110,7 +128,7 @@ class AdbMessage(
             A_STLS -> "A_STLS"
             else -> command.toString()
         }
-        return "command=$commandString, arg0=$arg0, arg1=$arg1, data_length=$data_length, data_crc32=$data_crc32, magic=$magic, data=${data?.contentToString()}"
+        return "command=$commandString, arg0=$arg0, arg1=$arg1, data_length=$data_length, data_crc32=$data_crc32, magic=$magic"
     }
 
     companion object {
@@ -118,16 +136,37 @@ class AdbMessage(
         const val HEADER_LENGTH = 24
 
 
-        private fun crc32(data: ByteArray?): Int {
-            if (data == null) return 0
-            var res = 0
-            for (b in data) {
-                if (b >= 0)
-                    res += b
-                else
-                    res += b + 256
+        private const val LANE_MASK = 0x00FF00FF00FF00FFL
+
+        // Each 16-bit lane gains at most 2 * 255 per word, so 128 words fit before folding.
+        private const val WORDS_PER_FOLD = 128
+
+        /**
+         * Unsigned byte sum of `data[offset until offset + length]`, eight bytes at a time.
+         */
+        fun crc32(data: ByteArray?, offset: Int, length: Int): Int {
+            if (data == null || length == 0) return 0
+            val words = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN)
+            val end = offset + length
+            val wordsEnd = offset + (length and 7.inv())
+            var sum = 0L
+            var pos = offset
+            while (pos < wordsEnd) {
+                val foldEnd = minOf(wordsEnd, pos + 8 * WORDS_PER_FOLD)
+                var lanes = 0L
+                while (pos < foldEnd) {
+                    val word = words.getLong(pos)
+                    lanes += (word and LANE_MASK) + ((word ushr 8) and LANE_MASK)
+                    pos += 8
+                }
+                sum += (lanes and 0xFFFF) + ((lanes ushr 16) and 0xFFFF) +
+                        ((lanes ushr 32) and 0xFFFF) + (lanes ushr 48)
+            }
+            while (pos < end) {
+                sum += data[pos].toInt() and 0xFF
+                pos++
             }
-            return res
+            return sum.toInt()
         }
     }
 }
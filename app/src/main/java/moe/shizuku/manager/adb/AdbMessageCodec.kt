@@ -0,0 +1,108 @@
+package moe.shizuku.manager.adb
+
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * Reads and writes [AdbMessage]s without per-message allocations on the hot path.
+ *
+ * Headers are decoded from and encoded into buffers owned by the codec, payloads are lent
+ * from [AdbBufferPool], and a message is written as header + payload with a single flush
+ * instead of being copied into one array first.
+ *
+ * Reads must come from a single thread; writes must be serialized by the caller.
+ */
+internal class AdbMessageCodec(input: InputStream, output: OutputStream) {
+
+    private val input = DataInputStream(input)
+    private val output = BufferedOutputStream(output, WRITE_BUFFER_SIZE)
+
+    /**
+     * Peers at [AdbProtocol.A_VERSION_SKIP_CHECKSUM] or later send a zero checksum, so incoming
+     * payloads are never verified (TCP and TLS already protect them). Outgoing checksums are
+     * still computed until the peer's version is known to allow skipping them.
+     */
+    @Volatile
+    var sendChecksum = true
+
+    private val readHeader = ByteBuffer.allocate(AdbMessage.HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN)
+    private val writeHeader = ByteBuffer.allocate(AdbMessage.HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN)
+
+    /**
+     * Reads the next message. Its payload is a pooled buffer that the receiver must give
+     * back with [AdbMessage.release] once done with it.
+     */
+    fun read(): AdbMessage {
+        input.readFully(readHeader.array(), 0, AdbMessage.HEADER_LENGTH)
+        readHeader.clear()
+
+        val command = readHeader.int
+        val arg0 = readHeader.int
+        val arg1 = readHeader.int
+        val dataLength = readHeader.int
+        val checksum = readHeader.int
+        val magic = readHeader.int
+
+        if (dataLength < 0 || dataLength > MAX_PAYLOAD) {
+            adbError("bad payload length $dataLength")
+        }
+
+        val data: ByteArray?
+        if (dataLength > 0) {
+            data = AdbBufferPool.acquire(dataLength)
+            try {
+                input.readFully(data, 0, dataLength)
+            } catch (e: Throwable) {
+                AdbBufferPool.release(data)
+                throw e
+            }
+        } else {
+            data = null
+        }
+        val message = AdbMessage(command, arg0, arg1, dataLength, checksum, magic, data, pooled = true)
+        if (command != magic.inv()) {
+            message.release()
+            throw IllegalArgumentException("bad message ${message.toStringShort()}")
+        }
+        return message
+    }
+
+    fun write(command: Int, arg0: Int, arg1: Int, data: ByteArray?, offset: Int = 0, length: Int = data?.size ?: 0) {
+        writeHeader.clear()
+        writeHeader.putInt(command)
+        writeHeader.putInt(arg0)
+        writeHeader.putInt(arg1)
+        writeHeader.putInt(length)
+        writeHeader.putInt(if (sendChecksum) AdbMessage.crc32(data, offset, length) else 0)
+        writeHeader.putInt(command.inv())
+        output.write(writeHeader.array(), 0, AdbMessage.HEADER_LENGTH)
+        if (data != null && length > 0) {
+            output.write(data, offset, length)
+        }
+        output.flush()
+    }
+
+    fun close() {
+        try {
+            input.close()
+        } catch (e: Throwable) {
+        }
+        try {
+            output.close()
+        } catch (e: Throwable) {
+        }
+    }
+
+    companion object {
+
+        // Small writes are coalesced with their header into one TLS record; larger payloads
+        // bypass the buffer and go straight to the socket after the header.
+        private const val WRITE_BUFFER_SIZE = 8 * 1024
+
+        const val MAX_PAYLOAD = AdbProtocol.A_MAXDATA
+    }
+}
@@ -11,12 +11,34 @@ object AdbProtocol {
     const val A_WRTE = 0x45545257
     const val A_STLS = 0x534C5453
 
-    const val A_VERSION = 0x01000000
-    const val A_MAXDATA = 4096
+    const val A_VERSION_MIN = 0x01000000
+    const val A_VERSION_SKIP_CHECKSUM = 0x01000001
+    const val A_VERSION = A_VERSION_SKIP_CHECKSUM
+
+    const val MAX_PAYLOAD_V1 = 4 * 1024
+    const val A_MAXDATA = 1024 * 1024
 
     const val A_STLS_VERSION = 0x01000000
 
     const val ADB_AUTH_TOKEN = 1
     const val ADB_AUTH_SIGNATURE = 2
     const val ADB_AUTH_RSAPUBLICKEY = 3
+
+    const val FEATURE_SHELL_V2 = "shell_v2"
+    const val FEATURE_CMD = "cmd"
+    const val FEATURE_STAT_V2 = "stat_v2"
+    const val FEATURE_LS_V2 = "ls_v2"
+    const val FEATURE_ABB_EXEC = "abb_exec"
+    const val FEATURE_DELAYED_ACK = "delayed_ack"
+
+    /**
+     * Features this client implements and advertises in its `A_CNXN` banner.
+     */
+    val HOST_FEATURES = listOf(FEATURE_SHELL_V2, FEATURE_CMD, FEATURE_DELAYED_ACK)
+
+    /**
+     * Bytes a peer may send on one stream ahead of our acknowledgements when delayed_ack is
+     * in use; bounds what a single stream can queue up in memory on our side.
+     */
+    const val DELAYED_ACK_WINDOW = 2 * 1024 * 1024
 }
\ No newline at end of file
@@ -0,0 +1,129 @@
+package moe.shizuku.manager.adb
+
+import java.io.ByteArrayOutputStream
+import java.io.Closeable
+import java.io.DataInputStream
+import java.io.EOFException
+import java.io.OutputStream
+
+class AdbShellResult(val exitCode: Int, val stdout: ByteArray, val stderr: ByteArray) {
+
+    val isSuccess get() = exitCode == 0
+
+    val stdoutText get() = String(stdout, Charsets.UTF_8)
+
+    val stderrText get() = String(stderr, Charsets.UTF_8)
+
+    override fun toString(): String = "AdbShellResult(exitCode=$exitCode, stdout=${stdout.size} bytes, stderr=${stderr.size} bytes)"
+}
+
+/**
+ * A `shell,v2` stream. Unlike plain `shell:`, stdout and stderr arrive as separate packets
+ * and the command's exit status is reported at the end, so no text parsing or second
+ * `echo $?` round trip is needed.
+ */
+class AdbShellStream internal constructor(private val stream: AdbStream, maxPayload: Int) : Closeable {
+
+    private val input = DataInputStream(stream.inputStream())
+    private val header = ByteArray(HEADER_LENGTH)
+    private val out = ByteArray(maxPayload)
+
+    @Volatile
+    var exitCode = -1
+        private set
+
+    /**
+     * Copies stdout and stderr to the given streams until the remote command exits.
+     *
+     * @return exit code of the command
+     */
+    fun waitFor(stdout: OutputStream?, stderr: OutputStream?): Int {
+        val buffer = AdbBufferPool.acquire(COPY_BUFFER_SIZE)
+        try {
+            while (true) {
+                try {
+                    input.readFully(header)
+                } catch (e: EOFException) {
+                    adbError("shell stream closed before exit status")
+                }
+                val id = header[0].toInt()
+                var remaining = (header[1].toInt() and 0xFF) or
+                        ((header[2].toInt() and 0xFF) shl 8) or
+                        ((header[3].toInt() and 0xFF) shl 16) or
+                        ((header[4].toInt() and 0xFF) shl 24)
+                if (id == ID_EXIT) {
+                    input.readFully(buffer, 0, remaining)
+                    exitCode = if (remaining > 0) buffer[0].toInt() and 0xFF else 0
+                    return exitCode
+                }
+                val sink = when (id) {
+                    ID_STDOUT -> stdout
+                    ID_STDERR -> stderr
+                    else -> null
+                }
+                while (remaining > 0) {
+                    val count = minOf(remaining, buffer.size)
+                    input.readFully(buffer, 0, count)
+                    sink?.write(buffer, 0, count)
+                    remaining -= count
+                }
+            }
+        } finally {
+            AdbBufferPool.release(buffer)
+        }
+    }
+
+    fun writeStdin(data: ByteArray, offset: Int = 0, length: Int = data.size) {
+        var position = offset
+        val end = offset + length
+        do {
+            val count = minOf(end - position, out.size - HEADER_LENGTH)
+            writePacket(ID_STDIN, data, position, count)
+            position += count
+        } while (position < end)
+    }
+
+    fun closeStdin() {
+        writePacket(ID_CLOSE_STDIN, null, 0, 0)
+    }
+
+    fun setWindowSize(rows: Int, cols: Int, xPixels: Int = 0, yPixels: Int = 0) {
+        val size = "${rows}x$cols,${xPixels}x$yPixels\u0000".toByteArray()
+        writePacket(ID_WINDOW_SIZE_CHANGE, size, 0, size.size)
+    }
+
+    @Synchronized
+    private fun writePacket(id: Int, data: ByteArray?, offset: Int, length: Int) {
+        out[0] = id.toByte()
+        out[1] = length.toByte()
+        out[2] = (length shr 8).toByte()
+        out[3] = (length shr 16).toByte()
+        out[4] = (length shr 24).toByte()
+        data?.copyInto(out, HEADER_LENGTH, offset, offset + length)
+        stream.write(out, 0, HEADER_LENGTH + length)
+    }
+
+    override fun close() {
+        input.close()
+    }
+
+    companion object {
+
+        private const val HEADER_LENGTH = 5
+        private const val COPY_BUFFER_SIZE = 64 * 1024
+
+        private const val ID_STDIN = 0
+        private const val ID_STDOUT = 1
+        private const val ID_STDERR = 2
+        private const val ID_EXIT = 3
+        private const val ID_CLOSE_STDIN = 4
+        private const val ID_WINDOW_SIZE_CHANGE = 5
+
+        internal fun collect(stream: AdbShellStream): AdbShellResult {
+            val stdout = ByteArrayOutputStream()
+            val stderr = ByteArrayOutputStream()
+            val exitCode = stream.waitFor(stdout, stderr)
+            return AdbShellResult(exitCode, stdout.toByteArray(), stderr.toByteArray())
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package moe.shizuku.manager.adb
+
+import java.io.Closeable
+import java.io.InputStream
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.Semaphore
+
+/**
+ * One logical stream (`shell:`, `exec:`, ...) multiplexed over an [AdbClient] connection.
+ *
+ * Messages for this stream are routed here by the client's reader thread, so reads never
+ * touch the socket directly and any number of streams can be in flight at once.
+ */
+class AdbStream internal constructor(
+    private val client: AdbClient,
+    val localId: Int,
+    private val delayedAck: Boolean
+) : Closeable {
+
+    @Volatile
+    var remoteId = 0
+        private set
+
+    @Volatile
+    var isClosed = false
+        private set
+
+    @Volatile
+    private var failure: Throwable? = null
+
+    private val opened = CountDownLatch(1)
+    private val writeAck = Semaphore(0)
+    private val incoming = LinkedBlockingQueue<AdbMessage>()
+
+    // With delayed_ack the remote grants byte credit instead of acknowledging every write.
+    private val creditLock = Object()
+    private var sendCredit = 0L
+
+    /**
+     * @param credit bytes granted by the `A_OKAY` payload, only meaningful with delayed_ack
+     */
+    internal fun onOkay(remoteId: Int, credit: Int) {
+        if (delayedAck) {
+            synchronized(creditLock) {
+                sendCredit += credit
+                creditLock.notifyAll()
+            }
+        }
+        if (this.remoteId == 0) {
+            this.remoteId = remoteId
+            opened.countDown()
+        } else if (!delayedAck) {
+            writeAck.release()
+        }
+    }
+
+    internal fun onWrite(message: AdbMessage) {
+        incoming.put(message)
+    }
+
+    internal fun onClose(remoteId: Int) {
+        if (this.remoteId == 0) this.remoteId = remoteId
+        isClosed = true
+        incoming.put(EOF)
+        opened.countDown()
+        writeAck.release()
+        synchronized(creditLock) {
+            creditLock.notifyAll()
+        }
+    }
+
+    internal fun onFailure(e: Throwable) {
+        failure = e
+        onClose(remoteId)
+    }
+
+    internal fun awaitOpen() {
+        opened.await()
+        failure?.let { throw AdbException("stream $localId failed", it) }
+        if (isClosed && remoteId == 0) adbError("stream $localId rejected by remote")
+    }
+
+    /**
+     * Returns a copy of the next chunk written by the remote side, or `null` once the stream
+     * is closed.
+     */
+    fun read(): ByteArray? {
+        var chunk: ByteArray? = null
+        if (!read { data, offset, length -> chunk = data.copyOfRange(offset, offset + length) }) return null
+        return chunk
+    }
+
+    /**
+     * Lends the next chunk to [sink] without copying it. The chunk is acknowledged only after
+     * [sink] returns, so the remote side cannot run ahead of a slow consumer. The buffer goes
+     * back to [AdbBufferPool] at the same time and must not be kept.
+     *
+     * @return `false` once the stream is closed
+     */
+    inline fun read(sink: (data: ByteArray, offset: Int, length: Int) -> Unit): Boolean {
+        val message = take() ?: return false
+        try {
+            sink(message.data ?: EMPTY, 0, message.data_length)
+        } finally {
+            done(message)
+        }
+        return true
+    }
+
+    /**
+     * Blocks for the next chunk without acknowledging it; pair every non-null result with
+     * [done].
+     */
+    @PublishedApi
+    internal fun take(): AdbMessage? {
+        val message = incoming.take()
+        if (message === EOF) {
+            incoming.put(EOF)
+            failure?.let { throw AdbException("stream $localId failed", it) }
+            return null
+        }
+        return message
+    }
+
+    /**
+     * Releases a chunk returned by [take] and lets the remote side send the next one, or with
+     * delayed_ack, hands its bytes back to the remote as send credit.
+     */
+    @PublishedApi
+    internal fun done(message: AdbMessage) {
+        val length = message.data_length
+        message.release()
+        if (!isClosed) client.writeOkay(localId, remoteId, length)
+    }
+
+    fun inputStream(): InputStream = AdbInputStream(this)
+
+    /**
+     * Sends [length] bytes as one `A_WRTE`. Without delayed_ack this waits for the remote's
+     * `A_OKAY`; with it, writes continue back to back while the remote has granted credit.
+     */
+    fun write(data: ByteArray, offset: Int = 0, length: Int = data.size) {
+        if (isClosed) adbError("stream $localId is closed")
+        if (delayedAck) {
+            synchronized(creditLock) {
+                while (sendCredit <= 0 && !isClosed) creditLock.wait()
+                sendCredit -= length
+            }
+            failure?.let { throw AdbException("stream $localId failed", it) }
+            if (isClosed) adbError("stream $localId is closed")
+            client.write(AdbProtocol.A_WRTE, localId, remoteId, data, offset, length)
+            return
+        }
+        client.write(AdbProtocol.A_WRTE, localId, remoteId, data, offset, length)
+        writeAck.acquire()
+        failure?.let { throw AdbException("stream $localId failed", it) }
+    }
+
+    override fun close() {
+        if (!isClosed) {
+            isClosed = true
+            try {
+                client.write(AdbProtocol.A_CLSE, localId, remoteId)
+            } catch (e: Exception) {
+            }
+        }
+        client.release(this)
+        drain()
+    }
+
+    private fun drain() {
+        while (true) {
+            val message = incoming.poll() ?: break
+            if (message === EOF) {
+                incoming.put(EOF)
+                break
+            }
+            message.release()
+        }
+    }
+
+    companion object {
+
+        @PublishedApi
+        internal val EMPTY = ByteArray(0)
+        private val EOF = AdbMessage(AdbProtocol.A_CLSE, 0, 0, null)
+    }
+}
@@ -0,0 +1,116 @@
+package moe.shizuku.manager.adb
+
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.flow
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.nio.CharBuffer
+import java.nio.charset.CharsetDecoder
+import java.nio.charset.CodingErrorAction
+
+/**
+ * [InputStream] view of an [AdbStream]. Each chunk is acknowledged only once it has been
+ * fully read, so a slow reader throttles the remote side instead of buffering its output.
+ */
+internal class AdbInputStream(private val stream: AdbStream) : InputStream() {
+
+    private var current: AdbMessage? = null
+    private var position = 0
+    private var eof = false
+
+    private fun fill(): AdbMessage? {
+        current?.let { if (position < it.data_length) return it }
+        current?.let {
+            current = null
+            stream.done(it)
+        }
+        if (eof) return null
+        val next = stream.take()
+        if (next == null) {
+            eof = true
+            return null
+        }
+        current = next
+        position = 0
+        return next
+    }
+
+    override fun read(): Int {
+        while (true) {
+            val message = fill() ?: return -1
+            if (message.data_length == 0) continue
+            return message.data!![position++].toInt() and 0xFF
+        }
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        if (len == 0) return 0
+        while (true) {
+            val message = fill() ?: return -1
+            val count = minOf(len, message.data_length - position)
+            if (count == 0) continue
+            System.arraycopy(message.data!!, position, b, off, count)
+            position += count
+            return count
+        }
+    }
+
+    override fun available(): Int {
+        val message = current ?: return 0
+        return message.data_length - position
+    }
+
+    override fun close() {
+        current?.release()
+        current = null
+        stream.close()
+    }
+}
+
+/**
+ * Decodes a chunked byte flow as UTF-8, carrying partial multi-byte sequences across chunk
+ * boundaries instead of turning them into replacement characters.
+ */
+fun Flow<ByteBuffer>.decodeUtf8(): Flow<String> = flow {
+    val decoder = Charsets.UTF_8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE)
+    val carry = ByteBuffer.allocate(8)
+    val chars = CharBuffer.allocate(8192)
+    val text = StringBuilder()
+
+    collect { chunk ->
+        // Finish a sequence split by the previous chunk one byte at a time; at most 3 bytes.
+        while (carry.position() > 0 && chunk.hasRemaining()) {
+            carry.put(chunk.get())
+            carry.flip()
+            decoder.decodeInto(carry, chars, text, false)
+            carry.compact()
+        }
+        decoder.decodeInto(chunk, chars, text, false)
+        carry.put(chunk)
+
+        chars.flip()
+        text.append(chars)
+        chars.clear()
+        if (text.isNotEmpty()) {
+            emit(text.toString())
+            text.setLength(0)
+        }
+    }
+
+    carry.flip()
+    decoder.decodeInto(carry, chars, text, true)
+    decoder.flush(chars)
+    chars.flip()
+    text.append(chars)
+    if (text.isNotEmpty()) emit(text.toString())
+}
+
+private fun CharsetDecoder.decodeInto(input: ByteBuffer, chars: CharBuffer, text: StringBuilder, endOfInput: Boolean) {
+    while (decode(input, chars, endOfInput).isOverflow) {
+        chars.flip()
+        text.append(chars)
+        chars.clear()
+    }
+}
@@ -0,0 +1,233 @@
+package moe.shizuku.manager.adb
+
+import java.io.Closeable
+import java.io.DataInputStream
+import java.io.EOFException
+import java.io.InputStream
+import java.io.OutputStream
+
+class AdbSyncStat(val mode: Int, val size: Long, val mtime: Long) {
+
+    val exists get() = mode != 0
+
+    override fun toString(): String = "AdbSyncStat(mode=${Integer.toOctalString(mode)}, size=$size, mtime=$mtime)"
+}
+
+class AdbSyncEntry(val name: String, val mode: Int, val size: Long, val mtime: Long) {
+
+    override fun toString(): String = "AdbSyncEntry(name=$name, mode=${Integer.toOctalString(mode)}, size=$size, mtime=$mtime)"
+}
+
+class AdbPushRequest(
+    val input: InputStream,
+    val remotePath: String,
+    val mode: Int = DEFAULT_MODE,
+    val mtime: Long = System.currentTimeMillis() / 1000
+) {
+
+    companion object {
+        const val DEFAULT_MODE = 0x81A4 // S_IFREG | 0644
+    }
+}
+
+class AdbPullRequest(val remotePath: String, val output: OutputStream)
+
+/**
+ * Client for the `sync:` service (file push/pull/stat/list).
+ *
+ * Requests are packed into [AdbStream] writes of up to the connection's max payload, so a
+ * large file is sent as a few big messages and a batch of files is sent back to back before
+ * any reply is read.
+ */
+class AdbSyncClient internal constructor(private val stream: AdbStream, maxPayload: Int) : Closeable {
+
+    private val input = DataInputStream(stream.inputStream())
+    private val out = ByteArray(maxPayload)
+    private var outPosition = 0
+    private val header = ByteArray(8)
+
+    fun stat(path: String): AdbSyncStat {
+        writeRequest(ID_STAT, path)
+        flush()
+        val id = readInt()
+        if (id != ID_STAT) adbError("unexpected sync response ${idToString(id)} to STAT")
+        val mode = readInt()
+        val size = readInt().toLong() and 0xFFFFFFFFL
+        val mtime = readInt().toLong() and 0xFFFFFFFFL
+        return AdbSyncStat(mode, size, mtime)
+    }
+
+    fun list(path: String): List<AdbSyncEntry> {
+        writeRequest(ID_LIST, path)
+        flush()
+        val entries = ArrayList<AdbSyncEntry>()
+        while (true) {
+            val id = readInt()
+            val mode = readInt()
+            val size = readInt().toLong() and 0xFFFFFFFFL
+            val mtime = readInt().toLong() and 0xFFFFFFFFL
+            val nameLength = readInt()
+            when (id) {
+                ID_DENT -> {
+                    val name = ByteArray(nameLength)
+                    input.readFully(name)
+                    entries.add(AdbSyncEntry(String(name), mode, size, mtime))
+                }
+                ID_DONE -> return entries
+                ID_FAIL -> adbError(readFailure(nameLength))
+                else -> adbError("unexpected sync response ${idToString(id)} to LIST")
+            }
+        }
+    }
+
+    fun push(request: AdbPushRequest) = pushAll(listOf(request))
+
+    /**
+     * Sends every file before reading any of the replies, so a batch costs one round trip
+     * instead of one per file.
+     */
+    fun pushAll(requests: List<AdbPushRequest>) {
+        for (request in requests) {
+            writeRequest(ID_SEND, "${request.remotePath},${request.mode}")
+            while (true) {
+                if (out.size - outPosition <= 8) flush()
+                val room = minOf(out.size - outPosition - 8, SYNC_DATA_MAX)
+                val count = request.input.read(out, outPosition + 8, room)
+                if (count < 0) break
+                if (count == 0) continue
+                putInt(ID_DATA)
+                putInt(count)
+                outPosition += count
+            }
+            ensureRoom(8)
+            putInt(ID_DONE)
+            putInt(request.mtime.toInt())
+        }
+        flush()
+
+        for (request in requests) {
+            val id = readInt()
+            val length = readInt()
+            when (id) {
+                ID_OKAY -> {
+                }
+                // adbd ends the sync session after a failure, so the remaining replies never come.
+                ID_FAIL -> adbError("${request.remotePath}: ${readFailure(length)}")
+                else -> adbError("unexpected sync response ${idToString(id)} to SEND")
+            }
+        }
+    }
+
+    fun pull(request: AdbPullRequest) = pullAll(listOf(request))
+
+    /**
+     * Queues every RECV request up front and then drains the replies in order.
+     */
+    fun pullAll(requests: List<AdbPullRequest>) {
+        for (request in requests) {
+            writeRequest(ID_RECV, request.remotePath)
+        }
+        flush()
+
+        for (request in requests) {
+            val buffer = AdbBufferPool.acquire(SYNC_DATA_MAX)
+            try {
+                while (true) {
+                    val id = readInt()
+                    val length = readInt()
+                    when (id) {
+                        ID_DATA -> {
+                            if (length > SYNC_DATA_MAX) adbError("sync DATA too large: $length")
+                            input.readFully(buffer, 0, length)
+                            request.output.write(buffer, 0, length)
+                        }
+                        ID_DONE -> break
+                        ID_FAIL -> adbError("${request.remotePath}: ${readFailure(length)}")
+                        else -> adbError("unexpected sync response ${idToString(id)} to RECV")
+                    }
+                }
+            } finally {
+                AdbBufferPool.release(buffer)
+            }
+        }
+    }
+
+    override fun close() {
+        try {
+            ensureRoom(8)
+            putInt(ID_QUIT)
+            putInt(0)
+            flush()
+        } catch (e: Exception) {
+        }
+        input.close()
+    }
+
+    private fun writeRequest(id: Int, path: String) {
+        val bytes = path.toByteArray()
+        if (bytes.size > SYNC_PATH_MAX) adbError("path too long: $path")
+        ensureRoom(8 + bytes.size)
+        putInt(id)
+        putInt(bytes.size)
+        bytes.copyInto(out, outPosition)
+        outPosition += bytes.size
+    }
+
+    private fun ensureRoom(size: Int) {
+        if (out.size - outPosition < size) flush()
+    }
+
+    private fun putInt(value: Int) {
+        out[outPosition] = value.toByte()
+        out[outPosition + 1] = (value shr 8).toByte()
+        out[outPosition + 2] = (value shr 16).toByte()
+        out[outPosition + 3] = (value shr 24).toByte()
+        outPosition += 4
+    }
+
+    private fun flush() {
+        if (outPosition == 0) return
+        stream.write(out, 0, outPosition)
+        outPosition = 0
+    }
+
+    private fun readInt(): Int {
+        try {
+            input.readFully(header, 0, 4)
+        } catch (e: EOFException) {
+            adbError("sync stream closed")
+        }
+        return (header[0].toInt() and 0xFF) or
+                ((header[1].toInt() and 0xFF) shl 8) or
+                ((header[2].toInt() and 0xFF) shl 16) or
+                ((header[3].toInt() and 0xFF) shl 24)
+    }
+
+    private fun readFailure(length: Int): String {
+        val message = ByteArray(length)
+        input.readFully(message)
+        return String(message)
+    }
+
+    companion object {
+
+        const val SYNC_DATA_MAX = 64 * 1024
+        const val SYNC_PATH_MAX = 1024
+
+        private const val ID_STAT = 0x54415453
+        private const val ID_LIST = 0x5453494C
+        private const val ID_SEND = 0x444E4553
+        private const val ID_RECV = 0x56434552
+        private const val ID_DENT = 0x544E4544
+        private const val ID_DONE = 0x454E4F44
+        private const val ID_DATA = 0x41544144
+        private const val ID_OKAY = 0x59414B4F
+        private const val ID_FAIL = 0x4C494146
+        private const val ID_QUIT = 0x54495551
+
+        private fun idToString(id: Int): String {
+            val bytes = byteArrayOf(id.toByte(), (id shr 8).toByte(), (id shr 16).toByte(), (id shr 24).toByte())
+            return String(bytes, Charsets.US_ASCII)
+        }
+    }
+}
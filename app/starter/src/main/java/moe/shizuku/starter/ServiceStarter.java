@@ -1,5 +1,6 @@
 package moe.shizuku.starter;
 
+import android.content.Context;
 import android.content.IContentProvider;
 import android.os.Binder;
 import android.os.Build;
@@ -9,6 +10,13 @@ import android.os.Looper;
 import android.util.Log;
 import android.util.Pair;
 
+import androidx.annotation.Nullable;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 
 import moe.shizuku.api.BinderContainer;
@@ -45,6 +53,14 @@ public class ServiceStarter {
             "--nice-name='%s' moe.shizuku.starter.ServiceStarter " +
             "--token='%s' --package='%s' --class='%s' --uid=%d%s)&";
 
+    private static final String ARG_STANDBY = "--standby";
+    private static final String ARG_NICE_NAME = "--nice-name=";
+
+    private static final String STANDBY_CMD_FORMAT = "CLASSPATH='%s' exec %s /system/bin " +
+            "--nice-name='%s' moe.shizuku.starter.ServiceStarter " + ARG_STANDBY + " >/dev/null 2>&1";
+
+    private static final String STANDBY_NICE_NAME = "shizuku_user_service_standby";
+
     // DeathRecipient will automatically be unlinked when all references to the
     // binder is dropped, so we hold the reference here.
     @SuppressWarnings("FieldCanBeLocal")
@@ -58,6 +74,14 @@ public class ServiceStarter {
                 token, packageName, classname, callingUid, debug ? (" " + "--debug-name=" + processName) : "");
     }
 
+    /**
+     * A standby host starts the VM and the system context, then waits for the arguments of a user
+     * service on stdin, one per line until stdin is closed.
+     */
+    public static String commandForStandby(String appProcess, String managerApkPath) {
+        return String.format(Locale.ENGLISH, STANDBY_CMD_FORMAT, managerApkPath, appProcess, STANDBY_NICE_NAME);
+    }
+
     public static void main(String[] args) {
         if (Looper.getMainLooper() == null) {
             Looper.prepareMainLooper();
@@ -67,7 +91,20 @@ public class ServiceStarter {
         String token;
 
         UserService.setTag(TAG);
-        Pair<IBinder, String> result = UserService.create(args);
+
+        Context systemContext = null;
+        if (args.length > 0 && ARG_STANDBY.equals(args[0])) {
+            systemContext = UserService.createSystemContext();
+            args = readStandbyArgs();
+            if (args == null) {
+                Log.i(TAG, "standby host is not needed anymore");
+                System.exit(0);
+                return;
+            }
+            setProcessName(args);
+        }
+
+        Pair<IBinder, String> result = UserService.create(args, systemContext);
 
         if (result == null) {
             System.exit(1);
@@ -87,6 +124,42 @@ public class ServiceStarter {
         Log.i(TAG, "service exited");
     }
 
+    @Nullable
+    private static String[] readStandbyArgs() {
+        List<String> args = new ArrayList<>();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    args.add(line);
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "read standby arguments", e);
+        }
+        return args.isEmpty() ? null : args.toArray(new String[0]);
+    }
+
+    /**
+     * The command line of a standby host names the standby, rename it to what a cold start would
+     * have been called.
+     */
+    private static void setProcessName(String[] args) {
+        for (String arg : args) {
+            if (arg.startsWith(ARG_NICE_NAME)) {
+                try {
+                    //noinspection JavaReflectionMemberAccess
+                    android.os.Process.class.getMethod("setArgV0", String.class)
+                            .invoke(null, arg.substring(ARG_NICE_NAME.length()));
+                } catch (Throwable tr) {
+                    Log.w(TAG, "setArgV0", tr);
+                }
+                return;
+            }
+        }
+    }
+
     private static boolean sendBinder(IBinder binder, String token) {
         return sendBinder(binder, token, true);
     }